@@ -1182,6 +1182,39 @@ static jboolean nfcManager_routeAid (JNIEnv* e, jobject, jbyteArray aid, jint ro
     return result;
 }
 
+/*******************************************************************************
+**
+** Function:        nfcManager_routeAids
+**
+** Description:     Add and remove a batch of AID routes and commit them.
+**                  RF discovery is stopped while the table is updated, so
+**                  the controller never listens with a partial table.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  entries: Packed entries, see RoutingManager::routeAids.
+**                  clear: Whether to remove all AID routes first.
+**
+** Returns:         True if all entries were applied and committed.
+**
+*******************************************************************************/
+static jboolean nfcManager_routeAids (JNIEnv* e, jobject, jbyteArray entries, jboolean clear)
+{
+    ScopedByteArrayRO bytes(e, entries);
+    const UINT8* buf = reinterpret_cast<const UINT8*>(&bytes[0]);
+    size_t bufLen = bytes.size();
+    bool wasRfEnabled = sRfEnabled;
+
+    if (wasRfEnabled) {
+        // Stop RF discovery to reconfigure
+        startRfDiscovery(false);
+    }
+    bool result = RoutingManager::getInstance().routeAids(buf, bufLen, clear);
+    if (wasRfEnabled) {
+        startRfDiscovery(true);
+    }
+    return result;
+}
+
 /*******************************************************************************
 **
 ** Function:        nfcManager_clearRouting
@@ -2881,6 +2914,8 @@ static JNINativeMethod gMethods[] =
 
     {"doRouteAid", "([BIIZ)Z",
             (void*) nfcManager_routeAid},
+    {"doRouteAids", "([BZ)Z",
+            (void*) nfcManager_routeAids},
     {"clearRouting", "()V",
             (void*) nfcManager_clearRouting},
 
@@ -1392,6 +1392,110 @@ static jbyteArray nativeNfcTag_doTransceive (JNIEnv* e, jobject o, jbyteArray da
 }
 
 
+/*******************************************************************************
+**
+** Function:        nativeNfcTag_doTransceiveBatch
+**
+** Description:     Send commands to the tag back to back, and check the
+**                  status word of each response.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  commands: Commands to send.
+**                  raw: Passed to nativeNfcTag_doTransceive() with each
+**                      command; it only logs the value.
+**                  expectedStatus: Expected status word of each response.
+**                  statusMasks: Bits of the status word to compare, 0 for
+**                      any response.
+**                  stopOnError: Whether a failure or an unexpected status
+**                      stops the batch; a lost tag always does.
+**                  maxResponseBytes: Limit on the total response length.
+**                  responses: Receives the responses.
+**                  results: Receives the result of each command, as in
+**                      com.android.nfc.TransceiveBatch.
+**
+** Returns:         False if the batch could not be run.
+**
+*******************************************************************************/
+static jboolean nativeNfcTag_doTransceiveBatch (JNIEnv* e, jobject o, jobjectArray commands,
+        jboolean raw, jintArray expectedStatus, jintArray statusMasks, jboolean stopOnError,
+        jint maxResponseBytes, jobjectArray responses, jintArray results)
+{
+    // Must match com.android.nfc.TransceiveBatch
+    static const jint RESULT_SUCCESS = 0;
+    static const jint RESULT_FAILURE = 1;
+    static const jint RESULT_TAGLOST = 2;
+    static const jint RESULT_EXCEEDED_LENGTH = 3;
+    static const jint RESULT_UNEXPECTED_STATUS = 4;
+    static const jint RESULT_NOT_RUN = 5;
+
+    jsize count = e->GetArrayLength (commands);
+    ALOGD ("%s: enter; %d commands", __FUNCTION__, count);
+
+    ScopedIntArrayRO expected (e, expectedStatus);
+    ScopedIntArrayRO masks (e, statusMasks);
+    ScopedIntArrayRW res (e, results);
+    ScopedLocalRef<jintArray> targetLost (e, e->NewIntArray (1));
+    if (expected.get () == NULL || masks.get () == NULL || res.get () == NULL ||
+            targetLost.get () == NULL || expected.size () < (size_t) count ||
+            masks.size () < (size_t) count || res.size () < (size_t) count ||
+            e->GetArrayLength (responses) < count)
+    {
+        ALOGE ("%s: invalid arguments", __FUNCTION__);
+        return JNI_FALSE;
+    }
+
+    jint responseBytes = 0;
+    jsize i = 0;
+    while (i < count)
+    {
+        ScopedLocalRef<jbyteArray> command (e, (jbyteArray) e->GetObjectArrayElement (commands, i));
+        ScopedLocalRef<jbyteArray> response (e,
+                nativeNfcTag_doTransceive (e, o, command.get (), raw, targetLost.get ()));
+        jint result = RESULT_SUCCESS;
+        if (response.get () == NULL)
+        {
+            jint lost = 0;
+            e->GetIntArrayRegion (targetLost.get (), 0, 1, &lost);
+            result = lost ? RESULT_TAGLOST : RESULT_FAILURE;
+        }
+        else
+        {
+            jsize length = e->GetArrayLength (response.get ());
+            responseBytes += length;
+            if (responseBytes > maxResponseBytes)
+            {
+                result = RESULT_EXCEEDED_LENGTH;
+            }
+            else
+            {
+                e->SetObjectArrayElement (responses, i, response.get ());
+                if (masks[i] != 0)
+                {
+                    jbyte sw[2] = {0, 0};
+                    if (length >= 2)
+                        e->GetByteArrayRegion (response.get (), length - 2, 2, sw);
+                    jint status = ((sw[0] & 0xFF) << 8) | (sw[1] & 0xFF);
+                    if (length < 2 || (status & masks[i]) != (expected[i] & masks[i]))
+                        result = RESULT_UNEXPECTED_STATUS;
+                }
+            }
+        }
+        res[i++] = result;
+        if (result == RESULT_TAGLOST || result == RESULT_EXCEEDED_LENGTH ||
+                (result != RESULT_SUCCESS && stopOnError))
+        {
+            ALOGD ("%s: stopping after command %d; result=%d", __FUNCTION__, i - 1, result);
+            break;
+        }
+    }
+    while (i < count)
+        res[i++] = RESULT_NOT_RUN;
+
+    ALOGD ("%s: exit", __FUNCTION__);
+    return JNI_TRUE;
+}
+
+
 /*******************************************************************************
 **
 ** Function:        nativeNfcTag_doGetNdefType
@@ -2352,6 +2456,7 @@ static JNINativeMethod gMethods[] =
    {"doReconnect", "()I", (void *)nativeNfcTag_doReconnect},
    {"doHandleReconnect", "(I)I", (void *)nativeNfcTag_doHandleReconnect},
    {"doTransceive", "([BZ[I)[B", (void *)nativeNfcTag_doTransceive},
+   {"doTransceiveBatch", "([[BZ[I[IZI[[B[I)Z", (void *)nativeNfcTag_doTransceiveBatch},
    {"doGetNdefType", "(II)I", (void *)nativeNfcTag_doGetNdefType},
    {"doCheckNdef", "([I)I", (void *)nativeNfcTag_doCheckNdef},
    {"doRead", "()[B", (void *)nativeNfcTag_doRead},
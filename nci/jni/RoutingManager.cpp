@@ -844,6 +844,26 @@ bool RoutingManager::addAidRouting(const UINT8* aid, UINT8 aidLen, int route)
     }
 }
 
+bool RoutingManager::removeAidRouting(const UINT8* aid, UINT8 aidLen)
+{
+    static const char fn [] = "RoutingManager::removeAidRouting";
+    ALOGD ("%s: enter", fn);
+    SyncEventGuard guard(SecureElement::getInstance().mAidAddRemoveEvent);
+    tNFA_STATUS nfaStat = NFA_EeRemoveAidRouting(aidLen, (UINT8*) aid);
+    if (nfaStat == NFA_STATUS_OK)
+    {
+        ALOGD ("%s: removed AID", fn);
+        mIsDirty = true;
+        SecureElement::getInstance().mAidAddRemoveEvent.wait();
+        return true;
+    }
+    else
+    {
+        ALOGE ("%s: failed to remove AID", fn);
+        return false;
+    }
+}
+
 void RoutingManager::clearAidRouting()
 {
     static const char fn [] = "RoutingManager::clearAidRouting";
@@ -903,6 +923,71 @@ void RoutingManager::setDefaultProtoRouting (int seId, int proto_switchon,int pr
 }
 #endif
 
+/*******************************************************************************
+**
+** Function:        routeAids
+**
+** Description:     Apply a batch of AID routing entries and commit them
+**                  with a single NFA_EeUpdateNow. Every entry is packed as
+**                  flags, route, power, AID length and the AID itself;
+**                  see AidRouteBatch.java.
+**                  entries: Packed entries.
+**                  length: Length of entries in bytes.
+**                  clear: Whether to remove all AID routes first.
+**
+** Returns:         True if all entries were applied and committed.
+**
+*******************************************************************************/
+bool RoutingManager::routeAids(const UINT8* entries, size_t length, bool clear)
+{
+    static const char fn [] = "RoutingManager::routeAids";
+    static const UINT8 FLAG_PREFIX = 0x01;
+    static const UINT8 FLAG_REMOVE = 0x02;
+    static const size_t ENTRY_HEADER_LEN = 4;
+    bool result = true;
+    size_t offset = 0;
+    int numEntries = 0;
+
+    ALOGD ("%s: enter, length=%zu clear=%d", fn, length, clear);
+    if (clear)
+    {
+        clearAidRouting();
+    }
+    while (offset + ENTRY_HEADER_LEN <= length)
+    {
+        UINT8 flags = entries[offset];
+        int route = entries[offset + 1];
+        int power = entries[offset + 2];
+        UINT8 aidLen = entries[offset + 3];
+        const UINT8* aid = entries + offset + ENTRY_HEADER_LEN;
+        if (offset + ENTRY_HEADER_LEN + aidLen > length)
+        {
+            ALOGE ("%s: truncated entry at %zu", fn, offset);
+            result = false;
+            break;
+        }
+        offset += ENTRY_HEADER_LEN + aidLen;
+        numEntries++;
+
+        if (flags & FLAG_REMOVE)
+        {
+            result &= removeAidRouting(aid, aidLen);
+        }
+        else
+        {
+#if(NFC_NXP_NOT_OPEN_INCLUDED == TRUE)
+            result &= addAidRouting(aid, aidLen, route, power, (flags & FLAG_PREFIX) != 0);
+#else
+            (void)power;
+            result &= addAidRouting(aid, aidLen, route);
+#endif
+        }
+    }
+    result &= commitRouting();
+    ALOGD ("%s: exit, %d entries, result=%d", fn, numEntries, result);
+    return result;
+}
+
 bool RoutingManager::commitRouting()
 {
     static const char fn [] = "RoutingManager::commitRouting";
@@ -69,7 +69,9 @@ public:
 #else
     bool addAidRouting(const UINT8* aid, UINT8 aidLen, int route);
 #endif
+    bool removeAidRouting(const UINT8* aid, UINT8 aidLen);
     void clearAidRouting();
+    bool routeAids(const UINT8* entries, size_t length, bool clear);
     bool commitRouting();
     void onNfccShutdown();
     int registerJniFunctions (JNIEnv* e);
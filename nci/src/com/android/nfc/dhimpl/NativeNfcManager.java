@@ -196,6 +196,13 @@ public class NativeNfcManager implements DeviceHost {
     }
 
     public native boolean doRouteAid(byte[] aid, int route, int powerState, boolean isprefix);
+
+    @Override
+    public boolean routeAids(byte[] entries, boolean clear) {
+        return doRouteAids(entries, clear);
+    }
+
+    public native boolean doRouteAids(byte[] entries, boolean clear);
     @Override
     public native boolean setDefaultRoute(int defaultRouteEntry, int defaultProtoRouteEntry, int defaultTechRouteEntry);
 
@@ -442,7 +449,13 @@ public class NativeNfcManager implements DeviceHost {
     private native String doDump();
     @Override
     public String dump() {
-        return doDump();
+        StringBuilder sb = new StringBuilder();
+        String nativeDump = doDump();
+        if (nativeDump != null) {
+            sb.append(nativeDump).append('\n');
+        }
+        NdefTechOrder.getInstance().dump(sb);
+        return sb.toString();
     }
 
     private native void doEnableScreenOffSuspend();
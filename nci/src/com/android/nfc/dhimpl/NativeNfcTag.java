@@ -37,6 +37,8 @@ package com.android.nfc.dhimpl;
 import android.annotation.Nullable;
 import com.android.nfc.DeviceHost;
 import com.android.nfc.DeviceHost.TagEndpoint;
+import com.android.nfc.NdefReadCache;
+import com.android.nfc.TransceiveBatch;
 
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
@@ -53,6 +55,12 @@ import android.nfc.tech.TagTechnology;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Native interface to the NFC tag functions
  */
@@ -87,69 +95,150 @@ public class NativeNfcTag implements TagEndpoint {
 
     private boolean mIsPresent; // Whether the tag is known to be still present
 
+    // NDEF type and capability container fingerprint found by the last
+    // successful NDEF check, for the NDEF read cache; type -1 if unknown
+    private int mCheckedNdefType = -1;
+    private int mCheckedNdefFingerprint;
+    // Whether the NDEF file of a Type 4 tag is still selected from the
+    // NDEF check; any other command to the tag may select another file
+    private boolean mNdefFileSelected;
+
+    // Reads the first bytes of the NDEF area, to validate cached messages
+    static final byte[] T2T_READ_NDEF_PREFIX = {0x30, 0x04};
+    static final byte[] T4T_READ_NDEF_PREFIX = {0x00, (byte) 0xB0, 0x00, 0x00, 0x10};
+
+    static final long PRESENCE_CHECK_KEEP_ALIVE_MS = 10000;
+    // Checks back off up to this many times the requested delay while the
+    // tag stays present, and tighten to a fraction of it after errors
+    static final int MAX_PRESENCE_CHECK_BACKOFF = 4;
+    static final int PRESENCE_CHECK_ERROR_DIVISOR = 4;
+    static final int MIN_PRESENCE_CHECK_DELAY_MS = 20;
+
+    // Presence checks of all tags run on one thread, which times out while
+    // no tag is connected
+    private static ScheduledThreadPoolExecutor sPresenceCheckExecutor;
+
+    static synchronized ScheduledThreadPoolExecutor getPresenceCheckExecutor() {
+        if (sPresenceCheckExecutor == null) {
+            sPresenceCheckExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "NfcPresenceCheck");
+                }
+            });
+            sPresenceCheckExecutor.setKeepAliveTime(PRESENCE_CHECK_KEEP_ALIVE_MS,
+                    TimeUnit.MILLISECONDS);
+            sPresenceCheckExecutor.allowCoreThreadTimeOut(true);
+            sPresenceCheckExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return sPresenceCheckExecutor;
+    }
+
     private PresenceCheckWatchdog mWatchdog;
-    class PresenceCheckWatchdog extends Thread {
+    class PresenceCheckWatchdog {
 
         private final int watchdogTimeout;
         private final DeviceHost.TagDisconnectedCallback tagDisconnectedCallback;
 
+        private int delay;
+        private ScheduledFuture<?> check;
+        // Tells the scheduled check apart from cancelled ones still running
+        private int generation;
         private boolean isPresent = true;
         private boolean isStopped = false;
         private boolean isPaused = false;
-        private boolean doCheck = true;
+        private boolean isFinished = false;
 
         public PresenceCheckWatchdog(int presenceCheckDelay,
                                      @Nullable DeviceHost.TagDisconnectedCallback callback) {
             watchdogTimeout = presenceCheckDelay;
+            delay = presenceCheckDelay;
             tagDisconnectedCallback = callback;
         }
 
+        public synchronized void start() {
+            if (DBG) Log.d(TAG, "Starting background presence check");
+            scheduleLocked();
+        }
+
+        void scheduleLocked() {
+            cancelLocked();
+            final int scheduled = generation;
+            check = getPresenceCheckExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkPresence(scheduled);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        void cancelLocked() {
+            generation++;
+            if (check != null) {
+                check.cancel(false);
+                check = null;
+            }
+        }
+
         public synchronized void pause() {
             isPaused = true;
-            doCheck = false;
-            this.notifyAll();
+            cancelLocked();
         }
 
         public synchronized void doResume() {
             isPaused = false;
-            // We don't want to resume presence checking immediately,
-            // but go through at least one more wait period.
-            doCheck = false;
-            this.notifyAll();
+            if (isPresent && !isStopped) {
+                // We don't want to resume presence checking immediately,
+                // but go through at least one more wait period.
+                scheduleLocked();
+            }
         }
 
-        public synchronized void end() {
-            isStopped = true;
-            doCheck = false;
-            this.notifyAll();
+        /**
+         * Checks sooner after an operation on the tag failed, as the tag
+         * may be leaving the field.
+         */
+        public synchronized void onError() {
+            delay = Math.max(MIN_PRESENCE_CHECK_DELAY_MS,
+                    watchdogTimeout / PRESENCE_CHECK_ERROR_DIVISOR);
         }
 
-        @Override
-        public void run() {
+        /**
+         * Stops checking and, unless the tag was already found lost,
+         * disconnects it on the calling thread.
+         */
+        public void end() {
             synchronized (this) {
-                if (DBG) Log.d(TAG, "Starting background presence check");
-                while (isPresent && !isStopped) {
-                    try {
-                        if (!isPaused) {
-                            doCheck = true;
-                        }
-                        this.wait(watchdogTimeout);
-                        if (doCheck) {
-                            isPresent = doPresenceCheck();
-                        } else {
-                            // 1) We are paused, waiting for unpause
-                            // 2) We just unpaused, do pres check in next iteration
-                            //       (after watchdogTimeout ms sleep)
-                            // 3) We just set the timeout, wait for this timeout
-                            //       to expire once first.
-                            // 4) We just stopped, exit loop anyway
-                        }
-                    } catch (InterruptedException e) {
-                        // Activity detected, loop
-                    }
+                isStopped = true;
+                cancelLocked();
+                if (!isPresent) {
+                    // A check found the tag lost, and disconnects it
+                    return;
                 }
+                isPresent = false;
             }
+            onTagLost();
+        }
 
+        void checkPresence(int scheduled) {
+            synchronized (this) {
+                if (scheduled != generation || isPaused || isStopped || !isPresent) {
+                    return;
+                }
+                check = null;
+                isPresent = doPresenceCheck();
+                if (isPresent) {
+                    // The tag is staying, check less often
+                    delay = Math.min(watchdogTimeout * MAX_PRESENCE_CHECK_BACKOFF,
+                            Math.max(delay + 1, delay * 3 / 2));
+                    scheduleLocked();
+                    return;
+                }
+            }
+            onTagLost();
+        }
+
+        void onTagLost() {
             //synchronized (NativeNfcTag.this) {
                 mIsPresent = false;
             //}
@@ -161,6 +250,19 @@ public class NativeNfcTag implements TagEndpoint {
                 tagDisconnectedCallback.onTagDisconnected(mConnectedHandle);
             }
             if (DBG) Log.d(TAG, "Stopping background presence check");
+            synchronized (this) {
+                isFinished = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the tag was disconnected after being found lost.
+         */
+        public synchronized void join() throws InterruptedException {
+            while (!isFinished) {
+                wait();
+            }
         }
     }
 
@@ -169,6 +271,7 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         int status = -1;
         for (int i = 0; i < mTechList.length; i++) {
             if (mTechList[i] == technology) {
@@ -294,6 +397,7 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         int status = doReconnect();
         if (mWatchdog != null) {
             mWatchdog.doResume();
@@ -310,6 +414,7 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         int status = doHandleReconnect(handle);
         if (mWatchdog != null) {
             mWatchdog.doResume();
@@ -323,19 +428,52 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         byte[] result = doTransceive(data, raw, returnCode);
         if (mWatchdog != null) {
+            if (returnCode[0] != 0) {
+                mWatchdog.onError();
+            }
             mWatchdog.doResume();
         }
         return result;
     }
 
+    private native boolean doTransceiveBatch(byte[][] commands, boolean raw,
+            int[] expectedStatus, int[] statusMasks, boolean stopOnError, int maxResponseBytes,
+            byte[][] responses, int[] results);
+    @Override
+    public synchronized void transceiveBatch(TransceiveBatch batch) {
+        if (mWatchdog != null) {
+            mWatchdog.pause();
+        }
+        mNdefFileSelected = false;
+        if (!doTransceiveBatch(batch.commands, batch.raw, batch.expectedStatus,
+                batch.statusMasks, batch.stopOnError, TransceiveBatch.MAX_RESPONSE_BYTES,
+                batch.responses, batch.results)) {
+            batch.fail(TransceiveBatch.RESULT_FAILURE);
+        }
+        if (mWatchdog != null) {
+            if (batch.hasErrors()) {
+                mWatchdog.onError();
+            }
+            mWatchdog.doResume();
+        }
+    }
+
     private native int doCheckNdef(int[] ndefinfo);
     private synchronized int checkNdefWithStatus(int[] ndefinfo) {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
         int status = doCheckNdef(ndefinfo);
+        mCheckedNdefType = -1;
+        mNdefFileSelected = status == 0;
+        if (status == 0 && NdefReadCache.getInstance().isEnabled()) {
+            mCheckedNdefType = getNdefType(getConnectedLibNfcType(), getConnectedTechnology());
+            mCheckedNdefFingerprint = NdefReadCache.getFingerprint(mCheckedNdefType,
+                    ndefinfo[0], ndefinfo[1]);
+        }
         if (mWatchdog != null) {
             mWatchdog.doResume();
         }
@@ -352,13 +490,48 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
-        byte[] result = doRead();
+        NdefReadCache cache = NdefReadCache.getInstance();
+        byte[] prefix = cache.isEnabled() ? readNdefPrefix() : null;
+        byte[] result = cache.get(mUid, mCheckedNdefFingerprint, prefix);
+        if (result == null) {
+            result = doRead();
+            cache.put(mUid, mCheckedNdefFingerprint, prefix, result);
+        }
         if (mWatchdog != null) {
             mWatchdog.doResume();
         }
         return result;
     }
 
+    /**
+     * Reads the first bytes of the NDEF area, including the NDEF length,
+     * of Type 2 and Type 4 tags; returns null for other tags, on error, or
+     * if the NDEF file of a Type 4 tag may no longer be selected.
+     */
+    private byte[] readNdefPrefix() {
+        int[] returnCode = new int[1];
+        if (mCheckedNdefType == Ndef.TYPE_2) {
+            byte[] response = doTransceive(T2T_READ_NDEF_PREFIX, false, returnCode);
+            if (returnCode[0] != 0 || response == null || response.length < 16) {
+                return null;
+            }
+            return response;
+        } else if (mCheckedNdefType == Ndef.TYPE_4) {
+            if (!mNdefFileSelected) {
+                // Another file may be selected; don't use the cache
+                return null;
+            }
+            byte[] response = doTransceive(T4T_READ_NDEF_PREFIX, false, returnCode);
+            if (returnCode[0] != 0 || response == null || response.length < 4 ||
+                    response[response.length - 2] != (byte) 0x90 ||
+                    response[response.length - 1] != 0x00) {
+                return null;
+            }
+            return Arrays.copyOf(response, response.length - 2);
+        }
+        return null;
+    }
+
     private native boolean doWrite(byte[] buf);
     @Override
     public synchronized boolean writeNdef(byte[] buf) {
@@ -391,6 +564,7 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         boolean result = doNdefFormat(key);
         if (mWatchdog != null) {
             mWatchdog.doResume();
@@ -404,6 +578,7 @@ public class NativeNfcTag implements TagEndpoint {
         if (mWatchdog != null) {
             mWatchdog.pause();
         }
+        mNdefFileSelected = false;
         boolean result;
         if (hasTech(TagTechnology.MIFARE_CLASSIC)) {
             result = doMakeReadonly(MifareClassic.KEY_DEFAULT);
@@ -761,44 +936,96 @@ public class NativeNfcTag implements TagEndpoint {
         }
     }
 
+    /**
+     * Returns the indices in mTechList to look for NDEF on, in order: the
+     * technology NDEF was last found on for this type of card first, then
+     * the others as listed. Technologies on a handle and protocol already
+     * in the list are left out, as checking them gives the same result.
+     */
+    private int[] getNdefCheckOrder(int preferredTechnology) {
+        int[] order = new int[mTechList.length];
+        int count = 0;
+        for (int i = 0; i < mTechList.length; i++) {
+            if (mTechList[i] == preferredTechnology) {
+                order[count++] = i;
+                break;
+            }
+        }
+        for (int i = 0; i < mTechList.length; i++) {
+            boolean duplicate = false;
+            for (int j = 0; j < count; j++) {
+                if (order[j] == i || (mTechHandles[order[j]] == mTechHandles[i] &&
+                        getLibNfcType(order[j]) == getLibNfcType(i))) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                order[count++] = i;
+            }
+        }
+        return Arrays.copyOf(order, count);
+    }
+
+    private int getLibNfcType(int techIndex) {
+        return techIndex < mTechLibNfcTypes.length ? mTechLibNfcTypes[techIndex] : 0;
+    }
+
+    private boolean probeNdefFormatable(String cardType) {
+        boolean formatable = isNdefFormatable();
+        NdefTechOrder.getInstance().onFormatableProbed(cardType, formatable);
+        return formatable;
+    }
+
     @Override
     public NdefMessage findAndReadNdef() {
         // Try to find NDEF on any of the technologies.
         int[] technologies = getTechList();
-        int[] handles = mTechHandles;
         NdefMessage ndefMsg = null;
         boolean foundFormattable = false;
         int formattableHandle = 0;
         int formattableLibNfcType = 0;
         int status;
-
-        for (int techIndex = 0; techIndex < technologies.length; techIndex++) {
-            // have we seen this handle before?
-            for (int i = 0; i < techIndex; i++) {
-                if (handles[i] == handles[techIndex]) {
-                    continue;  // don't check duplicate handles
-                }
-            }
-
+        boolean targetLost = false;
+        int ndefTechnology = -1;
+
+        // Start with the technology this type of card had NDEF on before.
+        // The formatable probe is skipped for it: it only matters if no NDEF
+        // message is read, and is done afterwards if so.
+        final NdefTechOrder techOrder = NdefTechOrder.getInstance();
+        final String cardType = NdefTechOrder.getCardType(technologies, mTechPollBytes,
+                mTechActBytes);
+        final int preferredTechnology = techOrder.getPreferredTechnology(cardType);
+        int[] order = getNdefCheckOrder(preferredTechnology);
+        boolean[] probed = new boolean[technologies.length];
+        int ndefTechIndex = -1;
+
+        for (int techIndex : order) {
             status = connectWithStatus(technologies[techIndex]);
             if (status != 0) {
                 Log.d(TAG, "Connect Failed - status = "+ status);
                 if (status == STATUS_CODE_TARGET_LOST) {
+                    targetLost = true;
                     break;
                 }
                 continue;  // try next handle
             }
             // Check if this type is NDEF formatable
             if (!foundFormattable) {
-                if (isNdefFormatable()) {
-                    foundFormattable = true;
-                    formattableHandle = getConnectedHandle();
-                    formattableLibNfcType = getConnectedLibNfcType();
-                    // We'll only add formattable tech if no ndef is
-                    // found - this is because libNFC refuses to format
-                    // an already NDEF formatted tag.
+                if (technologies[techIndex] == preferredTechnology) {
+                    techOrder.onPreferredProbeSkipped(cardType);
+                } else {
+                    probed[techIndex] = true;
+                    if (probeNdefFormatable(cardType)) {
+                        foundFormattable = true;
+                        formattableHandle = getConnectedHandle();
+                        formattableLibNfcType = getConnectedLibNfcType();
+                        // We'll only add formattable tech if no ndef is
+                        // found - this is because libNFC refuses to format
+                        // an already NDEF formatted tag.
+                    }
+                    reconnect();
                 }
-                reconnect();
             }
 
             int[] ndefinfo = new int[2];
@@ -806,6 +1033,7 @@ public class NativeNfcTag implements TagEndpoint {
             if (status != 0) {
                 Log.d(TAG, "Check NDEF Failed - status = " + status);
                 if (status == STATUS_CODE_TARGET_LOST) {
+                    targetLost = true;
                     break;
                 }
                 continue;  // try next handle
@@ -813,6 +1041,8 @@ public class NativeNfcTag implements TagEndpoint {
 
             // found our NDEF handle
             boolean generateEmptyNdef = false;
+            ndefTechnology = technologies[techIndex];
+            ndefTechIndex = techIndex;
 
             int supportedNdefLength = ndefinfo[0];
             int cardState = ndefinfo[1];
@@ -847,6 +1077,39 @@ public class NativeNfcTag implements TagEndpoint {
             break;
         }
 
+        if (ndefMsg == null && !foundFormattable && !targetLost &&
+                preferredTechnology != -1) {
+            // Probe where it was skipped, as far as checking the technologies
+            // in list order would have, so the result doesn't depend on the order
+            for (int techIndex : getNdefCheckOrder(-1)) {
+                if (!probed[techIndex]) {
+                    status = connectWithStatus(technologies[techIndex]);
+                    if (status == STATUS_CODE_TARGET_LOST) {
+                        targetLost = true;
+                        break;
+                    }
+                    if (status == 0) {
+                        boolean formatable = probeNdefFormatable(cardType);
+                        if (formatable) {
+                            foundFormattable = true;
+                            formattableHandle = getConnectedHandle();
+                            formattableLibNfcType = getConnectedLibNfcType();
+                        }
+                        reconnect();
+                        if (formatable) {
+                            break;
+                        }
+                    }
+                }
+                if (techIndex == ndefTechIndex) {
+                    break;
+                }
+            }
+        }
+        if (!targetLost) {
+            techOrder.onNdefChecked(cardType, preferredTechnology, ndefTechnology);
+        }
+
         if (ndefMsg == null && foundFormattable) {
             // Tag is not NDEF yet, and found a formattable target,
             // so add formattable tech to tech list.
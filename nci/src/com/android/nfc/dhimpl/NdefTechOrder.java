@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.nfc.tech.TagTechnology;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * NdefTechOrder learns, per type of card, on which technology NDEF was
+ * found, so that NativeNfcTag.findAndReadNdef() can look there first
+ * instead of going through the technologies in order.
+ *
+ * A type of card is identified by its technology list and, for NFC-A,
+ * its ATQA and SAK, or for NFC-B, the protocol info of its ATQB. The
+ * NDEF formatable probes are only counted for the dump; whether a card is
+ * probed never depends on earlier taps.
+ */
+final class NdefTechOrder {
+    // Number of card types remembered, least recently seen dropped first
+    static final int MAX_CARD_TYPES = 32;
+
+    static final class CardType {
+        int ndefTechnology = -1; // Technology NDEF was last found on, or -1
+        int taps;
+        int hits; // NDEF found on the technology tried first
+        int misses; // NDEF not found on the technology tried first
+        int formatableProbes;
+        boolean formatable;
+        int skippedProbes;
+    }
+
+    final LinkedHashMap<String, CardType> mCardTypes =
+            new LinkedHashMap<String, CardType>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CardType> eldest) {
+                    return size() > MAX_CARD_TYPES;
+                }
+            };
+
+    private static class Singleton {
+        private static final NdefTechOrder INSTANCE = new NdefTechOrder();
+    }
+
+    static NdefTechOrder getInstance() {
+        return Singleton.INSTANCE;
+    }
+
+    /**
+     * Returns the key identifying the type of a card from its technologies
+     * and their poll and activation bytes.
+     */
+    static String getCardType(int[] techList, byte[][] pollBytes, byte[][] actBytes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < techList.length; i++) {
+            sb.append(techList[i]).append(',');
+        }
+        for (int i = 0; i < techList.length; i++) {
+            byte[] poll = pollBytes != null && i < pollBytes.length ? pollBytes[i] : null;
+            byte[] act = actBytes != null && i < actBytes.length ? actBytes[i] : null;
+            if (techList[i] == TagTechnology.NFC_A) {
+                sb.append("A:");
+                appendHex(sb, poll, 0, poll != null ? poll.length : 0);
+                sb.append('/');
+                appendHex(sb, act, 0, act != null && act.length > 0 ? 1 : 0);
+                break;
+            } else if (techList[i] == TagTechnology.NFC_B) {
+                // Application data of ATQB differs between cards of a type
+                sb.append("B:");
+                appendHex(sb, poll, 4, poll != null && poll.length >= 7 ? 3 : 0);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    static void appendHex(StringBuilder sb, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            sb.append(String.format("%02X", bytes[i]));
+        }
+    }
+
+    CardType getCardTypeLocked(String cardType) {
+        CardType type = mCardTypes.get(cardType);
+        if (type == null) {
+            type = new CardType();
+            mCardTypes.put(cardType, type);
+        }
+        return type;
+    }
+
+    /**
+     * Returns the technology to look for NDEF on first for a newly
+     * discovered card of cardType, or -1 if there is none.
+     */
+    synchronized int getPreferredTechnology(String cardType) {
+        CardType type = getCardTypeLocked(cardType);
+        type.taps++;
+        return type.ndefTechnology;
+    }
+
+    synchronized void onFormatableProbed(String cardType, boolean formatable) {
+        CardType type = getCardTypeLocked(cardType);
+        type.formatableProbes++;
+        type.formatable |= formatable;
+    }
+
+    synchronized void onPreferredProbeSkipped(String cardType) {
+        getCardTypeLocked(cardType).skippedProbes++;
+    }
+
+    /**
+     * Records the technology NDEF was found on, or -1 if none had it.
+     */
+    synchronized void onNdefChecked(String cardType, int preferredTechnology,
+            int ndefTechnology) {
+        CardType type = getCardTypeLocked(cardType);
+        if (preferredTechnology != -1) {
+            if (preferredTechnology == ndefTechnology) {
+                type.hits++;
+            } else {
+                type.misses++;
+            }
+        }
+        type.ndefTechnology = ndefTechnology;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("NDEF technology order, by card type:\n");
+        for (Map.Entry<String, CardType> entry : mCardTypes.entrySet()) {
+            CardType type = entry.getValue();
+            int tries = type.hits + type.misses;
+            sb.append("    ").append(entry.getKey())
+                    .append(": NDEF on ").append(type.ndefTechnology)
+                    .append(", taps ").append(type.taps)
+                    .append(", hit rate ").append(type.hits).append('/').append(tries)
+                    .append(", formatable probes ").append(type.formatableProbes)
+                    .append(type.formatable ? " (formatable)" : "")
+                    .append(", skipped ").append(type.skippedProbes)
+                    .append('\n');
+        }
+    }
+}
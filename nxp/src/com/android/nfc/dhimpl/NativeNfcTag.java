@@ -17,6 +17,7 @@
 package com.android.nfc.dhimpl;
 
 import com.android.nfc.DeviceHost.TagEndpoint;
+import com.android.nfc.TransceiveBatch;
 
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
@@ -288,6 +289,11 @@ public class NativeNfcTag implements TagEndpoint {
         return result;
     }
 
+    @Override
+    public synchronized void transceiveBatch(TransceiveBatch batch) {
+        batch.run(this);
+    }
+
     private native int doCheckNdef(int[] ndefinfo);
     private synchronized int checkNdefWithStatus(int[] ndefinfo) {
         if (mWatchdog != null) {
@@ -721,11 +727,13 @@ public class NativeNfcTag implements TagEndpoint {
         int formattableLibNfcType = 0;
         int status;
 
+        nextTech:
         for (int techIndex = 0; techIndex < technologies.length; techIndex++) {
-            // have we seen this handle before?
+            // have we seen this handle and protocol before?
             for (int i = 0; i < techIndex; i++) {
-                if (handles[i] == handles[techIndex]) {
-                    continue;  // don't check duplicate handles
+                if (handles[i] == handles[techIndex] &&
+                        mTechLibNfcTypes[i] == mTechLibNfcTypes[techIndex]) {
+                    continue nextTech;  // don't check duplicate handles
                 }
             }
 
@@ -130,6 +130,7 @@ public interface DeviceHost {
         int getHandle();
 
         byte[] transceive(byte[] data, boolean raw, int[] returnCode);
+        void transceiveBatch(TransceiveBatch batch);
 
         boolean checkNdef(int[] out);
         byte[] readNdef();
@@ -275,6 +276,11 @@ public interface DeviceHost {
     public boolean sendRawFrame(byte[] data);
 
     public boolean routeAid(byte[] aid, int route, int powerState, boolean isprefix);
+    /**
+     * Adds and removes a batch of AID routes, optionally clearing all AID
+     * routes first, and commits the result to the controller.
+     */
+    public boolean routeAids(byte[] entries, boolean clear);
     public boolean setDefaultRoute(int defaultRouteEntry, int defaultProtoRouteEntry, int defaultTechRouteEntry);
     public void clearRouting();
 
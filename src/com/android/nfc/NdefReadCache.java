@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Singleton cache of NDEF messages read from tags, for readers that see
+ * the same tags over and over.
+ *
+ * Entries are keyed by tag UID, and hold the fingerprint of the tag's
+ * capability container (NDEF type, maximum size and read-only state) and
+ * the first bytes of its NDEF area, including the NDEF length. A cached
+ * message is only returned if a fresh read of those first bytes matches,
+ * which costs a single command instead of reading the whole message.
+ *
+ * The cache is off unless enabled, by a reader mode app passing
+ * EXTRA_READER_NDEF_CACHE. The least recently used entries are evicted
+ * when the cache holds more than MAX_ENTRIES messages or MAX_BYTES bytes.
+ */
+public class NdefReadCache {
+    private static final String TAG = "NdefReadCache";
+
+    /** Reader mode extra enabling the cache while reader mode is on */
+    public static final String EXTRA_READER_NDEF_CACHE =
+            "com.android.nfc.extra.READER_NDEF_CACHE";
+
+    static final int MAX_ENTRIES = 4096;
+    static final int MAX_BYTES = 1024 * 1024;
+    // Rough overhead of an entry besides its arrays
+    static final int ENTRY_OVERHEAD = 64;
+
+    static final class Entry {
+        final int fingerprint;
+        final byte[] prefix;
+        final byte[] ndef;
+        final int size;
+
+        Entry(byte[] uid, int fingerprint, byte[] prefix, byte[] ndef) {
+            this.fingerprint = fingerprint;
+            this.prefix = prefix;
+            this.ndef = ndef;
+            this.size = uid.length + prefix.length + ndef.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    // Access ordered, least recently used first
+    final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    boolean mEnabled;
+    int mBytes;
+
+    int mHits;
+    int mMisses;
+    int mStale;
+    int mEvictions;
+    int mInvalidations;
+
+    private static class Singleton {
+        private static final NdefReadCache INSTANCE = new NdefReadCache();
+    }
+
+    public static NdefReadCache getInstance() {
+        return Singleton.INSTANCE;
+    }
+
+    /**
+     * Returns the fingerprint of a tag's capability container, from what
+     * checking it for NDEF returned.
+     */
+    public static int getFingerprint(int ndefType, int maxLength, int cardState) {
+        return ((ndefType * 31) + maxLength) * 31 + cardState;
+    }
+
+    static String getKey(byte[] uid) {
+        StringBuilder sb = new StringBuilder(uid.length * 2);
+        for (byte b : uid) {
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Enables or disables the cache; disabling drops all entries.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mEntries.clear();
+            mBytes = 0;
+        }
+    }
+
+    /**
+     * Returns a copy of the cached NDEF message of the tag with uid, if its
+     * fingerprint and the freshly read prefix of its NDEF area match.
+     */
+    public synchronized byte[] get(byte[] uid, int fingerprint, byte[] prefix) {
+        if (!mEnabled || uid == null || prefix == null) {
+            return null;
+        }
+        String key = getKey(uid);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (entry.fingerprint != fingerprint || !Arrays.equals(entry.prefix, prefix)) {
+            // The tag was rewritten
+            removeLocked(key);
+            mStale++;
+            return null;
+        }
+        mHits++;
+        return entry.ndef.clone();
+    }
+
+    public synchronized void put(byte[] uid, int fingerprint, byte[] prefix, byte[] ndef) {
+        if (!mEnabled || uid == null || prefix == null || ndef == null) {
+            return;
+        }
+        Entry entry = new Entry(uid, fingerprint, prefix.clone(), ndef.clone());
+        if (entry.size > MAX_BYTES) {
+            return;
+        }
+        String key = getKey(uid);
+        removeLocked(key);
+        mEntries.put(key, entry);
+        mBytes += entry.size;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) && it.hasNext()) {
+            mBytes -= it.next().size;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Drops the entry of the tag with uid, when its NDEF is about to change.
+     */
+    public synchronized void invalidate(byte[] uid) {
+        if (uid != null && removeLocked(getKey(uid))) {
+            mInvalidations++;
+        }
+    }
+
+    boolean removeLocked(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        mBytes -= entry.size;
+        return true;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("NDEF read cache: " + (mEnabled ? "enabled" : "disabled") +
+                ", " + mEntries.size() + " entries, " + mBytes + " bytes");
+        pw.println("    hits " + mHits + ", misses " + mMisses + ", stale " + mStale +
+                ", evictions " + mEvictions + ", invalidations " + mInvalidations);
+    }
+}
@@ -72,8 +72,10 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteException;
@@ -191,6 +193,8 @@ public class NfcService implements DeviceHostListener {
     static final int MSG_RF_FIELD_ACTIVATED = 26;
     static final int MSG_RF_FIELD_DEACTIVATED = 27;
     static final int MSG_RESUME_POLLING = 28;
+    static final int MSG_COMMIT_AID_ROUTES = 29;
+    static final int MSG_TAG_READ = 30;
     static final long MAX_POLLING_PAUSE_TIMEOUT = 40000;
 
     static final int TASK_ENABLE = 1;
@@ -221,6 +225,7 @@ public class NfcService implements DeviceHostListener {
 
     // minimum screen state that enables NFC polling
     static final int NFC_POLLING_MODE = ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED;
+    static final int NUM_SCREEN_STATES = ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED + 1;
 
     // Time to wait for NFC controller to initialize before watchdog
     // goes off. This time is chosen large, because firmware download
@@ -323,6 +328,11 @@ public class NfcService implements DeviceHostListener {
     private final ReaderModeDeathRecipient mReaderModeDeathRecipient =
             new ReaderModeDeathRecipient();
     private final NfcUnlockManager mNfcUnlockManager;
+    // Blocking tag I/O for NDEF discovery runs here, so that a slow tag
+    // doesn't hold up routing, card emulation and screen state messages
+    // on mHandler
+    private final HandlerThread mTagIoThread;
+    private final Handler mTagIoHandler;
 
     private int mEeRoutingState;  // contactless interface routing
 
@@ -333,11 +343,15 @@ public class NfcService implements DeviceHostListener {
 
     // fields below are used in multiple threads and protected by synchronized(this)
     final HashMap<Integer, Object> mObjectMap = new HashMap<Integer, Object>();
+    int mTagReadsInFlight; // Tags being read on mTagIoHandler, not yet in mObjectMap
+    volatile long mEnableStartMs = -1; // When NFC was enabled, until the first AID routes commit
+    volatile long mEnableToRoutingMs = -1; // Time from enabling NFC to the routing being committed
     // mSePackages holds packages that accessed the SE, but only for the owner user,
     // as SE access is not granted for non-owner users.
     HashSet<String> mSePackages = new HashSet<String>();
     int mScreenState;
     boolean mInProvisionMode; // whether we're in setup wizard and enabled NFC provisioning
+    boolean mExpressTransitEnabled; // whether host routing stays enabled with the screen off
     boolean mIsNdefPushEnabled;
     boolean mNfceeRouteEnabled;  // current Device Host state of NFC-EE routing
     boolean mNfcPollingEnabled;  // current Device Host state of NFC-C polling
@@ -345,6 +359,11 @@ public class NfcService implements DeviceHostListener {
     boolean mReaderModeEnabled;  // current Device Host state of reader mode
     NfcDiscoveryParameters mCurrentDiscoveryParameters =
             NfcDiscoveryParameters.getNfcOffParameters();
+    // Discovery parameters for each screen state, indexed by state. They
+    // only depend on reader mode, provisioning, lock screen polling and
+    // express transit, so screen changes just pick one; null when one of
+    // those inputs changed since they were computed.
+    NfcDiscoveryParameters[] mDiscoveryProfiles;
 
     ReaderModeParams mReaderModeParams;
 
@@ -659,6 +678,10 @@ public class NfcService implements DeviceHostListener {
 
         mNfcUnlockManager = NfcUnlockManager.getInstance();
 
+        mTagIoThread = new HandlerThread("NfcTagIo");
+        mTagIoThread.start();
+        mTagIoHandler = new Handler(mTagIoThread.getLooper());
+
         mHandoverManager = new HandoverManager(mContext);
         boolean isNfcProvisioningEnabled = false;
         try {
@@ -1109,6 +1132,7 @@ public class NfcService implements DeviceHostListener {
                 return true;
             }
             Log.i(TAG, "Enabling NFC");
+            mEnableStartMs = SystemClock.elapsedRealtime();
             updateState(NfcAdapter.STATE_TURNING_ON);
 
             WatchDogThread watchDog = new WatchDogThread("enableInternal", INIT_WATCHDOG_MS);
@@ -1118,6 +1142,7 @@ public class NfcService implements DeviceHostListener {
                 try {
                     if (!mDeviceHost.initialize()) {
                         Log.w(TAG, "Error enabling NFC");
+                        mEnableStartMs = -1;
                         updateState(NfcAdapter.STATE_OFF);
                         return false;
                     }
@@ -1165,6 +1190,7 @@ public class NfcService implements DeviceHostListener {
                 //mDeviceHost.disableRoutingToHost();
             }
             Log.i(TAG, "Disabling NFC");
+            mEnableStartMs = -1;
             updateState(NfcAdapter.STATE_TURNING_OFF);
 
             /* Sometimes mDeviceHost.deinitialize() hangs, use a watch-dog.
@@ -1552,7 +1578,10 @@ public class NfcService implements DeviceHostListener {
                                 ? (extras.getInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY,
                                         DEFAULT_PRESENCE_CHECK_DELAY))
                                 : DEFAULT_PRESENCE_CHECK_DELAY;
+                        NdefReadCache.getInstance().setEnabled(extras != null &&
+                                extras.getBoolean(NdefReadCache.EXTRA_READER_NDEF_CACHE));
                         binder.linkToDeath(mReaderModeDeathRecipient, 0);
+                        invalidateDiscoveryProfilesLocked();
                     } catch (RemoteException e) {
                         Log.e(TAG, "Remote binder has already died.");
                         return;
@@ -1560,6 +1589,8 @@ public class NfcService implements DeviceHostListener {
                 } else {
                     try {
                         mReaderModeParams = null;
+                        NdefReadCache.getInstance().setEnabled(false);
+                        invalidateDiscoveryProfilesLocked();
                         binder.unlinkToDeath(mReaderModeDeathRecipient, 0);
                     } catch (NoSuchElementException e) {
                         Log.e(TAG, "Reader mode Binder was never registered.");
@@ -1583,6 +1614,7 @@ public class NfcService implements DeviceHostListener {
             int lockscreenPollMask = computeLockscreenPollMask(techList);
             synchronized (NfcService.this) {
                 mNfcUnlockManager.addUnlockHandler(unlockHandler, lockscreenPollMask);
+                invalidateDiscoveryProfilesLocked();
             }
 
             applyRouting(false);
@@ -1592,6 +1624,7 @@ public class NfcService implements DeviceHostListener {
         public void removeNfcUnlockHandler(INfcUnlockHandler token) throws RemoteException {
             synchronized (NfcService.this) {
                 mNfcUnlockManager.removeUnlockHandler(token.asBinder());
+                invalidateDiscoveryProfilesLocked();
             }
 
             applyRouting(false);
@@ -1850,6 +1883,8 @@ public class NfcService implements DeviceHostListener {
             synchronized (NfcService.this) {
                 if (mReaderModeParams != null) {
                     mReaderModeParams = null;
+                    NdefReadCache.getInstance().setEnabled(false);
+                    invalidateDiscoveryProfilesLocked();
                     applyRouting(false);
                 }
             }
@@ -2023,6 +2058,59 @@ public class NfcService implements DeviceHostListener {
             return null;
         }
 
+        /**
+         * Sends all commands of batch to the tag back to back, with one
+         * lookup of the tag and one native call. Returns batch with its
+         * results filled in, or null if NFC is off or the tag is gone.
+         */
+        public TransceiveBatch transceiveBatch(int nativeHandle, TransceiveBatch batch)
+                throws RemoteException {
+            NfcPermissions.enforceUserPermissions(mContext);
+
+            // Check if NFC is enabled
+            if (!isNfcEnabled()) {
+                return null;
+            }
+
+            /* find the tag in the hmap */
+            TagEndpoint tag = (TagEndpoint) findObject(nativeHandle);
+            if (tag == null) {
+                return null;
+            }
+            // Check if lengths are within limits
+            int maxLength = getMaxTransceiveLength(tag.getConnectedTechnology());
+            for (byte[] command : batch.commands) {
+                if (command.length > maxLength) {
+                    batch.fail(TransceiveBatch.RESULT_EXCEEDED_LENGTH);
+                    return batch;
+                }
+            }
+            tag.transceiveBatch(batch);
+            return batch;
+        }
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            if (code != TransceiveBatch.TRANSACTION_TRANSCEIVE_BATCH) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            data.enforceInterface(DESCRIPTOR);
+            int nativeHandle = data.readInt();
+            TransceiveBatch batch = TransceiveBatch.readFromParcel(data);
+            if (batch != null) {
+                batch = transceiveBatch(nativeHandle, batch);
+            }
+            reply.writeNoException();
+            if (batch != null) {
+                reply.writeInt(1);
+                batch.writeResultsToParcel(reply);
+            } else {
+                reply.writeInt(0);
+            }
+            return true;
+        }
+
         @Override
         public NdefMessage ndefRead(int nativeHandle) throws RemoteException {
             NfcPermissions.enforceUserPermissions(mContext);
@@ -2071,6 +2159,7 @@ public class NfcService implements DeviceHostListener {
 
             if (msg == null) return ErrorCodes.ERROR_INVALID_PARAM;
 
+            NdefReadCache.getInstance().invalidate(tag.getUid());
             if (tag.writeNdef(msg.toByteArray())) {
                 return ErrorCodes.SUCCESS;
             } else {
@@ -2101,6 +2190,7 @@ public class NfcService implements DeviceHostListener {
                 return ErrorCodes.ERROR_IO;
             }
 
+            NdefReadCache.getInstance().invalidate(tag.getUid());
             if (tag.makeReadOnly()) {
                 return ErrorCodes.SUCCESS;
             } else {
@@ -2125,6 +2215,7 @@ public class NfcService implements DeviceHostListener {
                 return ErrorCodes.ERROR_IO;
             }
 
+            NdefReadCache.getInstance().invalidate(tag.getUid());
             if (tag.formatNdef(key)) {
                 return ErrorCodes.SUCCESS;
             } else {
@@ -2776,6 +2867,19 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
+    /**
+     * Keeps host routing enabled with the screen off, while an
+     * express transit service is designated.
+     */
+    public void setExpressTransitEnabled(boolean enabled) {
+        synchronized (this) {
+            if (mExpressTransitEnabled == enabled) return;
+            mExpressTransitEnabled = enabled;
+            invalidateDiscoveryProfilesLocked();
+        }
+        new ApplyRoutingTask().execute();
+    }
+
     /**
      * Read mScreenState and apply NFC-C polling and NFC-EE routing
      */
@@ -2794,6 +2898,7 @@ public class NfcService implements DeviceHostListener {
                     // and allow handover transfers.
                     mNfcDispatcher.disableProvisioningMode();
                     mHandoverManager.setEnabled(true);
+                    invalidateDiscoveryProfilesLocked();
                 }
             }
             // Special case: if we're transitioning to unlocked state while
@@ -2807,8 +2912,8 @@ public class NfcService implements DeviceHostListener {
 
             try {
                 watchDog.start();
-                // Compute new polling parameters
-                NfcDiscoveryParameters newParams = computeDiscoveryParameters(mScreenState);
+                applyDefaultRouteIfDirtyLocked();
+                NfcDiscoveryParameters newParams = getDiscoveryParametersLocked(mScreenState);
                 if (force || !newParams.equals(mCurrentDiscoveryParameters)) {
                     if (newParams.shouldEnableDiscovery()) {
                         boolean shouldRestart = mCurrentDiscoveryParameters.shouldEnableDiscovery();
@@ -2826,6 +2931,38 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
+    void invalidateDiscoveryProfilesLocked() {
+        mDiscoveryProfiles = null;
+    }
+
+    /**
+     * Called by NfcUnlockManager when it dropped unlock handlers on its own;
+     * the new poll mask is used from the next routing update on.
+     */
+    void onLockscreenPollMaskChanged() {
+        synchronized (this) {
+            invalidateDiscoveryProfilesLocked();
+        }
+    }
+
+    /**
+     * Returns the discovery parameters for screenState, computing those
+     * of all screen states first if their inputs changed.
+     */
+    NfcDiscoveryParameters getDiscoveryParametersLocked(int screenState) {
+        if (screenState < 0 || screenState >= NUM_SCREEN_STATES) {
+            return computeDiscoveryParameters(screenState);
+        }
+        if (mDiscoveryProfiles == null) {
+            NfcDiscoveryParameters[] profiles = new NfcDiscoveryParameters[NUM_SCREEN_STATES];
+            for (int i = 0; i < NUM_SCREEN_STATES; i++) {
+                profiles[i] = computeDiscoveryParameters(i);
+            }
+            mDiscoveryProfiles = profiles;
+        }
+        return mDiscoveryProfiles[screenState];
+    }
+
     private NfcDiscoveryParameters computeDiscoveryParameters(int screenState) {
         // Recompute discovery parameters based on screen state
         NfcDiscoveryParameters.Builder paramsBuilder = NfcDiscoveryParameters.newBuilder();
@@ -2859,10 +2996,17 @@ public class NfcService implements DeviceHostListener {
             paramsBuilder.setEnableLowPowerDiscovery(false);
         }
 
-        if (mIsHceCapable && mScreenState >= ScreenStateHelper.SCREEN_STATE_ON_LOCKED) {
+        if (mIsHceCapable && screenState >= ScreenStateHelper.SCREEN_STATE_ON_LOCKED) {
             // Host routing is always enabled at lock screen or later
             paramsBuilder.setEnableHostRouting(true);
+        } else if (mIsHceCapable && mExpressTransitEnabled) {
+            // The express transit service is served with the screen off
+            paramsBuilder.setEnableHostRouting(true);
         }
+        return paramsBuilder.build();
+    }
+
+    void applyDefaultRouteIfDirtyLocked() {
         //To make routing table update.
         if(mIsRoutingTableDirty) {
             mIsRoutingTableDirty = false;
@@ -2872,11 +3016,12 @@ public class NfcService implements DeviceHostListener {
             Log.d(TAG, "Set default Route Entry");
             setDefaultRoute(defaultRoute, protoRoute, techRoute);
         }
-
-        return paramsBuilder.build();
     }
 
     private boolean isTagPresent() {
+        if (mTagReadsInFlight > 0) {
+            return true;
+        }
         for (Object object : mObjectMap.values()) {
             if (object instanceof TagEndpoint) {
                 return ((TagEndpoint) object).isPresent();
@@ -2977,10 +3122,28 @@ public class NfcService implements DeviceHostListener {
         msg.obj = aid;
         mHandler.sendMessage(msg);
     }
+
+    /**
+     * Programs a batch of AID routing entries, as packed by AidRouteBatch,
+     * and commits them to the controller. If clear is set, all existing
+     * AID routes are removed first.
+     */
+    public void commitAidRoutes(byte[] entries, boolean clear) {
+        Message msg = mHandler.obtainMessage(MSG_COMMIT_AID_ROUTES, clear ? 1 : 0, 0, entries);
+        mHandler.sendMessage(msg);
+    }
+
     public void commitRouting() {
         mHandler.sendEmptyMessage(MSG_COMMIT_ROUTING);
     }
 
+    /**
+     * Returns the size of the controller's AID routing table, in bytes.
+     */
+    public int getAidRoutingTableSize() {
+        return mDeviceHost.getAidTableSize();
+    }
+
     /**
      * get default Aid route entry in case application does not configure this route entry
      */
@@ -3067,6 +3230,20 @@ public class NfcService implements DeviceHostListener {
                     // Restart polling config
                     break;
                 }
+                case MSG_COMMIT_AID_ROUTES: {
+                    byte[] entries = (byte[]) msg.obj;
+                    if (!mDeviceHost.routeAids(entries, msg.arg1 != 0)) {
+                        Log.e(TAG, "Failed to commit all AID routes");
+                    }
+                    final long enableStartMs = mEnableStartMs;
+                    if (enableStartMs != -1) {
+                        mEnableStartMs = -1;
+                        mEnableToRoutingMs = SystemClock.elapsedRealtime() - enableStartMs;
+                        Log.i(TAG, "AID routes committed " + mEnableToRoutingMs +
+                                " ms after enabling");
+                    }
+                    break;
+                }
                 case MSG_INVOKE_BEAM: {
                     mP2pLinkManager.onManualBeamInvoke((BeamShareData)msg.obj);
                     break;
@@ -3148,20 +3325,18 @@ public class NfcService implements DeviceHostListener {
                         dispatchTagEndpoint(tag, readerParams);
                         break;
                     }
-                    NdefMessage ndefMsg = tag.findAndReadNdef();
-
-                    if (ndefMsg != null) {
-                        tag.startPresenceChecking(presenceCheckDelay, callback);
-                        dispatchTagEndpoint(tag, readerParams);
-                    } else {
-                        if (tag.reconnect()) {
-                            tag.startPresenceChecking(presenceCheckDelay, callback);
-                            dispatchTagEndpoint(tag, readerParams);
-                        } else {
-                            tag.disconnect();
-                            playSound(SOUND_ERROR);
-                        }
+                    synchronized (NfcService.this) {
+                        mTagReadsInFlight++;
                     }
+                    mTagIoHandler.post(new TagReadTask(tag, readerParams, presenceCheckDelay,
+                            callback));
+                    break;
+
+                case MSG_TAG_READ:
+                    TagReadTask readTask = (TagReadTask) msg.obj;
+                    // Registers the tag before it stops counting as in flight
+                    dispatchTagEndpoint(readTask.mTag, readTask.mReaderParams);
+                    readTask.onFinished();
                     break;
 
                 case MSG_CARD_EMULATION:
@@ -3514,6 +3689,45 @@ public class NfcService implements DeviceHostListener {
 
     private NfcServiceHandler mHandler = new NfcServiceHandler();
 
+    /**
+     * Reads NDEF from a newly discovered tag on the tag I/O thread, and
+     * hands the tag back to mHandler for dispatch.
+     */
+    final class TagReadTask implements Runnable {
+        final TagEndpoint mTag;
+        final ReaderModeParams mReaderParams;
+        final int mPresenceCheckDelay;
+        final DeviceHost.TagDisconnectedCallback mCallback;
+
+        TagReadTask(TagEndpoint tag, ReaderModeParams readerParams, int presenceCheckDelay,
+                DeviceHost.TagDisconnectedCallback callback) {
+            mTag = tag;
+            mReaderParams = readerParams;
+            mPresenceCheckDelay = presenceCheckDelay;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            NdefMessage ndefMsg = mTag.findAndReadNdef();
+
+            if (ndefMsg != null || mTag.reconnect()) {
+                mTag.startPresenceChecking(mPresenceCheckDelay, mCallback);
+                sendMessage(MSG_TAG_READ, this);
+            } else {
+                mTag.disconnect();
+                onFinished();
+                playSound(SOUND_ERROR);
+            }
+        }
+
+        void onFinished() {
+            synchronized (NfcService.this) {
+                mTagReadsInFlight--;
+            }
+        }
+    }
+
     class ApplyRoutingTask extends AsyncTask<Integer, Void, Void> {
         @Override
         protected Void doInBackground(Integer... params) {
@@ -3670,7 +3884,9 @@ public class NfcService implements DeviceHostListener {
             pw.println("mNfceeRouteEnabled=" + mNfceeRouteEnabled);
             pw.println("mIsAirplaneSensitive=" + mIsAirplaneSensitive);
             pw.println("mIsAirplaneToggleable=" + mIsAirplaneToggleable);
+            pw.println("mEnableToRoutingMs=" + mEnableToRoutingMs);
             pw.println(mCurrentDiscoveryParameters);
+            NdefReadCache.getInstance().dump(pw);
             pw.println("mOpenEe=" + mOpenEe);
             mP2pLinkManager.dump(fd, pw, args);
             if (mIsHceCapable) {
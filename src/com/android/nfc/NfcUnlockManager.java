@@ -52,23 +52,33 @@ class NfcUnlockManager {
         return mLockscreenPollMask;
     }
 
-    synchronized boolean tryUnlock(Tag tag) {
-        Iterator<IBinder> iterator = mUnlockHandlers.keySet().iterator();
-        while (iterator.hasNext()) {
-            try {
-                IBinder binder = iterator.next();
-                UnlockHandlerWrapper handlerWrapper = mUnlockHandlers.get(binder);
-                if (handlerWrapper.mUnlockHandler.onUnlockAttempted(tag)) {
-                    return true;
+    boolean tryUnlock(Tag tag) {
+        boolean unlocked = false;
+        boolean pollMaskChanged = false;
+        synchronized (this) {
+            Iterator<IBinder> iterator = mUnlockHandlers.keySet().iterator();
+            while (iterator.hasNext()) {
+                try {
+                    IBinder binder = iterator.next();
+                    UnlockHandlerWrapper handlerWrapper = mUnlockHandlers.get(binder);
+                    if (handlerWrapper.mUnlockHandler.onUnlockAttempted(tag)) {
+                        unlocked = true;
+                        break;
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "failed to communicate with unlock handler, removing", e);
+                    iterator.remove();
+                    int pollMask = recomputePollMask();
+                    pollMaskChanged |= pollMask != mLockscreenPollMask;
+                    mLockscreenPollMask = pollMask;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "failed to communicate with unlock handler, removing", e);
-                iterator.remove();
-                mLockscreenPollMask = recomputePollMask();
             }
         }
-
-        return false;
+        // Outside of our lock, as NfcService calls us with its lock held
+        if (pollMaskChanged) {
+            NfcService.getInstance().onLockscreenPollMaskChanged();
+        }
+        return unlocked;
     }
 
     private int recomputePollMask() {
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.util.Log;
+
+/**
+ * A batch of commands sent to a tag back to back in one call, for bulk
+ * reads that would otherwise take a Binder call per command.
+ *
+ * Each command has an expected status rule: if its mask is non-zero, the
+ * last two bytes of the response, masked, must equal the expected status,
+ * masked. A mask of 0 accepts any response, for tags without status words.
+ * A lost tag always stops the batch; with stopOnError, so does a failed
+ * command or an unexpected status. Commands after the one that stopped the
+ * batch get RESULT_NOT_RUN.
+ *
+ * Batches are sent with TRANSACTION_TRANSCEIVE_BATCH on the INfcTag binder:
+ *   request: interface token, native handle, raw, stopOnError, count,
+ *            then per command: command bytes, expected status, status mask
+ *   reply:   no exception, 1 if run (0 if not), count,
+ *            then per command: result, response bytes
+ */
+public final class TransceiveBatch {
+    static final String TAG = "TransceiveBatch";
+
+    /** Transaction code on the INfcTag binder, above those of INfcTag */
+    public static final int TRANSACTION_TRANSCEIVE_BATCH =
+            IBinder.FIRST_CALL_TRANSACTION + 0x1000;
+
+    // Results; the first ones match TransceiveResult
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_FAILURE = 1;
+    public static final int RESULT_TAGLOST = 2;
+    public static final int RESULT_EXCEEDED_LENGTH = 3;
+    public static final int RESULT_UNEXPECTED_STATUS = 4;
+    public static final int RESULT_NOT_RUN = 5;
+
+    public static final int MAX_COMMANDS = 1024;
+    // Keeps the reply well within the Binder transaction buffer
+    public static final int MAX_RESPONSE_BYTES = 256 * 1024;
+
+    public final byte[][] commands;
+    public final int[] expectedStatus;
+    public final int[] statusMasks;
+    public final boolean raw;
+    public final boolean stopOnError;
+
+    public final byte[][] responses;
+    public final int[] results;
+
+    public TransceiveBatch(byte[][] commands, int[] expectedStatus, int[] statusMasks,
+            boolean raw, boolean stopOnError) {
+        this.commands = commands;
+        this.expectedStatus = expectedStatus;
+        this.statusMasks = statusMasks;
+        this.raw = raw;
+        this.stopOnError = stopOnError;
+        responses = new byte[commands.length][];
+        results = new int[commands.length];
+    }
+
+    /**
+     * Reads a batch request, or returns null if it is invalid.
+     */
+    public static TransceiveBatch readFromParcel(Parcel in) {
+        boolean raw = in.readInt() != 0;
+        boolean stopOnError = in.readInt() != 0;
+        int count = in.readInt();
+        if (count <= 0 || count > MAX_COMMANDS) {
+            Log.e(TAG, "Invalid number of commands: " + count);
+            return null;
+        }
+        byte[][] commands = new byte[count][];
+        int[] expectedStatus = new int[count];
+        int[] statusMasks = new int[count];
+        for (int i = 0; i < count; i++) {
+            commands[i] = in.createByteArray();
+            expectedStatus[i] = in.readInt();
+            statusMasks[i] = in.readInt();
+            if (commands[i] == null) {
+                Log.e(TAG, "Missing command " + i);
+                return null;
+            }
+        }
+        return new TransceiveBatch(commands, expectedStatus, statusMasks, raw, stopOnError);
+    }
+
+    public void writeResultsToParcel(Parcel out) {
+        out.writeInt(results.length);
+        for (int i = 0; i < results.length; i++) {
+            out.writeInt(results[i]);
+            out.writeByteArray(responses[i]);
+        }
+    }
+
+    /**
+     * Returns whether the response to command i meets its status rule.
+     */
+    public boolean matchesStatus(int i, byte[] response) {
+        if (statusMasks[i] == 0) {
+            return true;
+        }
+        if (response.length < 2) {
+            return false;
+        }
+        int status = ((response[response.length - 2] & 0xFF) << 8) |
+                (response[response.length - 1] & 0xFF);
+        return (status & statusMasks[i]) == (expectedStatus[i] & statusMasks[i]);
+    }
+
+    /**
+     * Marks all commands with result, for batches that can't be run.
+     */
+    public void fail(int result) {
+        for (int i = 0; i < results.length; i++) {
+            responses[i] = null;
+            results[i] = result;
+        }
+    }
+
+    /**
+     * Returns whether any command failed or found the tag lost.
+     */
+    public boolean hasErrors() {
+        for (int result : results) {
+            if (result == RESULT_FAILURE || result == RESULT_TAGLOST) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the batch one command at a time through transceive(), for tags
+     * that have no native batch support.
+     */
+    public void run(DeviceHost.TagEndpoint tag) {
+        int responseBytes = 0;
+        int[] returnCode = new int[1];
+        int i = 0;
+        while (i < commands.length) {
+            byte[] response = tag.transceive(commands[i], raw, returnCode);
+            int result;
+            if (response == null) {
+                result = returnCode[0] == 1 ? RESULT_TAGLOST : RESULT_FAILURE;
+            } else if ((responseBytes += response.length) > MAX_RESPONSE_BYTES) {
+                result = RESULT_EXCEEDED_LENGTH;
+            } else {
+                responses[i] = response;
+                result = matchesStatus(i, response) ? RESULT_SUCCESS : RESULT_UNEXPECTED_STATUS;
+            }
+            results[i++] = result;
+            if (result == RESULT_TAGLOST || result == RESULT_EXCEEDED_LENGTH ||
+                    (result != RESULT_SUCCESS && stopOnError)) {
+                break;
+            }
+        }
+        while (i < commands.length) {
+            results[i++] = RESULT_NOT_RUN;
+        }
+    }
+}
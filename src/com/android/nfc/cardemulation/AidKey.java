@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+/**
+ * An immutable AID in its raw byte form, with a precomputed hash.
+ *
+ * Keys are created once, when the AID cache is compiled or for constants,
+ * and can then be compared against AIDs inside a received APDU without
+ * copying or converting those to a String.
+ */
+final class AidKey implements Comparable<AidKey> {
+    static final char[] HEX_CHARS = {'0', '1', '2', '3', '4', '5', '6', '7',
+            '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    final byte[] mBytes;
+    final int mHash;
+
+    AidKey(byte[] bytes) {
+        mBytes = bytes;
+        mHash = hash(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns a key for a hex AID, or null if the AID is not valid hex.
+     * A trailing '*' for prefix AIDs is ignored.
+     */
+    static AidKey fromString(String aid) {
+        byte[] bytes = AidTrie.aidToBytes(aid);
+        return bytes != null ? new AidKey(bytes) : null;
+    }
+
+    int length() {
+        return mBytes.length;
+    }
+
+    /**
+     * Returns whether buf[offset..offset+length) holds exactly this AID.
+     */
+    boolean matches(byte[] buf, int offset, int length) {
+        if (length != mBytes.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (mBytes[i] != buf[offset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether this AID starts with buf[offset..offset+length).
+     */
+    boolean startsWith(byte[] buf, int offset, int length) {
+        if (length > mBytes.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (mBytes[i] != buf[offset + i]) return false;
+        }
+        return true;
+    }
+
+    static int hash(byte[] buf, int offset, int length) {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + buf[offset + i];
+        }
+        return result;
+    }
+
+    /**
+     * Compares two byte ranges as unsigned, lexicographically ordered AIDs;
+     * this is the same order as their upper case hex representation.
+     */
+    static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+            if (diff != 0) return diff;
+        }
+        return aLength - bLength;
+    }
+
+    @Override
+    public int compareTo(AidKey other) {
+        return compare(mBytes, 0, mBytes.length, other.mBytes, 0, other.mBytes.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        AidKey that = (AidKey) o;
+        return mHash == that.mHash && matches(that.mBytes, 0, that.mBytes.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return toString(mBytes, 0, mBytes.length);
+    }
+
+    static String toString(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int byteValue = bytes[offset + j] & 0xFF;
+            chars[j * 2] = HEX_CHARS[byteValue >>> 4];
+            chars[j * 2 + 1] = HEX_CHARS[byteValue & 0x0F];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Packs AID routing table updates into a single buffer, so they can be
+ * handed to the controller in one call.
+ *
+ * Every entry is encoded as:
+ *   flags (1 byte), route (1 byte), power state (1 byte),
+ *   AID length (1 byte), AID (AID length bytes)
+ * Entries are applied in order; this must match RoutingManager::routeAids().
+ */
+final class AidRouteBatch {
+    static final String TAG = "AidRouteBatch";
+
+    static final int FLAG_PREFIX = 0x01;
+    static final int FLAG_REMOVE = 0x02;
+
+    static final int ENTRY_HEADER_LENGTH = 4;
+
+    final ByteArrayOutputStream mEntries = new ByteArrayOutputStream();
+    int mNumEntries;
+
+    /**
+     * Adds a route for the AID of elem; a trailing '*' makes it a prefix route.
+     */
+    boolean addRoute(AidElement elem) {
+        return addEntry(elem, 0);
+    }
+
+    /**
+     * Removes the route for the AID of elem.
+     */
+    boolean removeRoute(AidElement elem) {
+        return addEntry(elem, FLAG_REMOVE);
+    }
+
+    boolean addEntry(AidElement elem, int flags) {
+        String aid = elem.getAid();
+        byte[] aidBytes = AidTrie.aidToBytes(aid);
+        if (aidBytes == null || aidBytes.length > 0xFF) {
+            Log.e(TAG, "Ignoring malformed AID " + aid);
+            return false;
+        }
+        if (aid.endsWith("*")) {
+            flags |= FLAG_PREFIX;
+        }
+        mEntries.write(flags);
+        mEntries.write(elem.getRouteLocation());
+        mEntries.write(elem.getPowerState());
+        mEntries.write(aidBytes.length);
+        mEntries.write(aidBytes, 0, aidBytes.length);
+        mNumEntries++;
+        return true;
+    }
+
+    int size() {
+        return mNumEntries;
+    }
+
+    byte[] toByteArray() {
+        return mEntries.toByteArray();
+    }
+}
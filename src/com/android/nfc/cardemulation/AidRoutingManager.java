@@ -41,14 +41,17 @@ import com.android.nfc.NfcService;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class AidRoutingManager {
     static final String TAG = "AidRoutingManager";
@@ -101,6 +104,18 @@ public class AidRoutingManager {
     // Easy look-up what the power state is for a certain AID
     HashMap<String, Integer> mPowerForAid = new HashMap<String, Integer>();
 
+    // The entries currently programmed in the controller, by AID as registered.
+    // These are copies, as configureRouting() modifies the elements it is passed.
+    HashMap<String, AidElement> mCommittedRoutes = new HashMap<String, AidElement>();
+
+    final AidRoutingPlanner mPlanner;
+
+    int mSkippedCommits;
+    int mFullCommits;
+    int mIncrementalCommits;
+    int mLastAddedRoutes;
+    int mLastRemovedRoutes;
+
     private native int doGetDefaultRouteDestination();
     private native int doGetDefaultOffHostRouteDestination();
     private native int doGetAidMatchingMode();
@@ -118,17 +133,13 @@ public class AidRoutingManager {
         mAidMatchingPlatform = doGetAidMatchingPlatform();
         if (DBG) Log.d(TAG, "mAidMatchingPlatform=0x" + Integer.toHexString(mAidMatchingPlatform));
         mVzwRoutingCache = new VzwRoutingCache();
+        mPlanner = new AidRoutingPlanner(mAidMatchingSupport);
     }
 
     public boolean supportsAidPrefixRouting() {
         return mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX ||
                 mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY;
     }
-    void clearNfcRoutingTableLocked() {
-        NfcService.getInstance().clearRouting();
-        mRouteForAid.clear();
-        mAidRoutingTable.clear();
-    }
 
     public boolean configureRouting(HashMap<String, AidElement> aidMap) {
         mDefaultRoute = NfcService.getInstance().GetDefaultRouteLoc();
@@ -157,13 +168,13 @@ public class AidRoutingManager {
         }
 
         synchronized (mLock) {
-            if (routeForAid.equals(mRouteForAid)) {
+            if (routeForAid.equals(mRouteForAid) && powerForAid.equals(mPowerForAid)) {
                 if (DBG) Log.d(TAG, "Routing table unchanged, not updating");
+                mSkippedCommits++;
                 return false;
             }
 
             // Otherwise, update internal structures and commit new routing
-            clearNfcRoutingTableLocked();
             mRouteForAid = routeForAid;
             mPowerForAid = powerForAid;
             mAidRoutingTable = aidRoutingTable;
@@ -183,25 +194,13 @@ public class AidRoutingManager {
                  * The only way to prevent this is to add the longer AIDs of the
                  * default route at the top of the table, so they will be matched first.
                  */
-                Set<String> defaultRouteAids = mAidRoutingTable.get(mDefaultRoute);
-               if (defaultRouteAids != null) {
-                    for (String defaultRouteAid : defaultRouteAids) {
-                        // Check whether there are any shorted AIDs routed to non-default
-                        // TODO this is O(N^2) run-time complexity...
-                        for (Map.Entry<String, Integer> aidEntry : mRouteForAid.entrySet()) {
-                            String aid = aidEntry.getKey();
-                            int route = aidEntry.getValue();
-                            if (defaultRouteAid.startsWith(aid) && route != mDefaultRoute) {
-                                if (DBG) Log.d(TAG, "Adding AID " + defaultRouteAid + " for default " +
-                                        "route, because a conflicting shorter AID will be added" +
-                                        "to the routing table");
-                                AidElement elem = aidMap.get(defaultRouteAid);
-                                elem.setRouteLocation(mDefaultRoute);
-                                routeCache.put(defaultRouteAid, elem);
-//                                NfcService.getInstance().routeAids(defaultRouteAid, mDefaultRoute, mPowerForAid.get(defaultRouteAid));
-                            }
-                        }
-                    }
+                for (String defaultRouteAid : findShadowedAids(mRouteForAid, mDefaultRoute)) {
+                    if (DBG) Log.d(TAG, "Adding AID " + defaultRouteAid + " for default " +
+                            "route, because a conflicting shorter AID will be added" +
+                            "to the routing table");
+                    AidElement elem = aidMap.get(defaultRouteAid);
+                    elem.setRouteLocation(mDefaultRoute);
+                    routeCache.put(defaultRouteAid, elem);
                 }
             }
 
@@ -241,33 +240,205 @@ public class AidRoutingManager {
                     }
                 }
             }
-        }
 
-        // And finally commit the routing
-        commit(routeCache);
-//        NfcService.getInstance().commitRouting();
+            // And finally commit the routing
+            commitLocked(routeCache);
+        }
 
         return true;
     }
 
-    private void commit(Hashtable<String, AidElement> routeCache ) {
-        List<AidElement> list = Collections.list(routeCache.elements());
-        Collections.sort(list);
-        Iterator<AidElement> it = list.iterator();
-
-        NfcService.getInstance().clearRouting();
-
-        while(it.hasNext()){
-            AidElement element =it.next();
-            if (DBG) Log.d (TAG, element.toString());
-            NfcService.getInstance().routeAids(
-                    element.getAid(),
-                    element.getRouteLocation(),
-                    element.getPowerState()
-                    );
+    /**
+     * Returns the AIDs routed to defaultRoute that start with an AID routed
+     * elsewhere, and hence would be shadowed by that shorter AID.
+     *
+     * In lexicographic order, all AIDs starting with an AID directly follow
+     * it, so a single pass over the sorted AIDs with a stack of the
+     * enclosing non-default AIDs finds them in O(N log N).
+     */
+    static List<String> findShadowedAids(Map<String, Integer> routeForAid, int defaultRoute) {
+        ArrayList<String> shadowedAids = new ArrayList<String>();
+        String[] aids = routeForAid.keySet().toArray(new String[routeForAid.size()]);
+        Arrays.sort(aids);
+        ArrayDeque<String> enclosingAids = new ArrayDeque<String>();
+        for (String aid : aids) {
+            while (!enclosingAids.isEmpty() && !aid.startsWith(enclosingAids.peek())) {
+                enclosingAids.pop();
+            }
+            if (routeForAid.get(aid) == defaultRoute) {
+                if (!enclosingAids.isEmpty()) {
+                    shadowedAids.add(aid);
+                }
+            } else {
+                enclosingAids.push(aid);
+            }
+        }
+        return shadowedAids;
+    }
+
+    /**
+     * Programs routeCache into the controller, shrunk to fit the controller's
+     * table if needed. Only the entries that differ from what was committed
+     * before are removed and added, unless the controller needs the whole
+     * table to be rewritten.
+     */
+    void commitLocked(Hashtable<String, AidElement> routeCache) {
+        routeCache = mPlanner.plan(routeCache, mRouteForAid, mPowerForAid, mDefaultRoute,
+                NfcService.getInstance().getAidRoutingTableSize());
+        HashMap<String, AidElement> newRoutes = new HashMap<String, AidElement>(routeCache.size());
+        ArrayList<AidElement> added = new ArrayList<AidElement>();
+        ArrayList<AidElement> removed = new ArrayList<AidElement>();
+        ArrayList<AidElement> retained = new ArrayList<AidElement>();
+        // Registered AID for each AID as programmed in the controller
+        HashMap<String, String> keyForMatchAid = new HashMap<String, String>(routeCache.size());
+        for (Map.Entry<String, AidElement> entry : routeCache.entrySet()) {
+            AidElement elem = entry.getValue();
+            AidElement copy = new AidElement(elem.getAid(), elem.getWeight(),
+                    elem.getRouteLocation(), elem.getPowerState());
+            newRoutes.put(entry.getKey(), copy);
+            keyForMatchAid.put(getMatchAid(copy), entry.getKey());
+            AidElement committed = mCommittedRoutes.get(entry.getKey());
+            if (committed == null) {
+                added.add(copy);
+            } else if (isSameRoute(committed, copy)) {
+                retained.add(copy);
+            } else {
+                // Changed route or power state; replace the entry
+                removed.add(committed);
+                added.add(copy);
+            }
+        }
+        boolean ambiguousRemoval = false;
+        for (Map.Entry<String, AidElement> entry : mCommittedRoutes.entrySet()) {
+            String key = keyForMatchAid.get(getMatchAid(entry.getValue()));
+            if (key != null && !key.equals(entry.getKey())) {
+                // Removing this entry would also remove another one for the same AID
+                ambiguousRemoval = true;
+            }
+            if (!newRoutes.containsKey(entry.getKey())) {
+                removed.add(entry.getValue());
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            if (DBG) Log.d(TAG, "Routing entries unchanged, not committing");
+            mSkippedCommits++;
+            return;
+        }
+        mCommittedRoutes = newRoutes;
+        mLastAddedRoutes = added.size();
+        mLastRemovedRoutes = removed.size();
+
+        String reason = null;
+        if (retained.isEmpty()) {
+            reason = "no entries retained";
+        } else if (ambiguousRemoval) {
+            reason = "ambiguous removal";
+        } else if (requiresReorder(added, retained)) {
+            reason = "ordering";
         }
-        // And finally commit the routing
-        NfcService.getInstance().commitRouting();
+
+        AidRouteBatch batch = new AidRouteBatch();
+        if (reason != null) {
+            if (DBG) Log.d(TAG, "Rewriting routing table: " + reason);
+            mFullCommits++;
+            List<AidElement> list = new ArrayList<AidElement>(newRoutes.values());
+            Collections.sort(list);
+            for (AidElement elem : list) {
+                if (DBG) Log.d(TAG, elem.toString());
+                batch.addRoute(elem);
+            }
+        } else {
+            if (DBG) Log.d(TAG, "Updating routing table: " + removed.size() + " removed, " +
+                    added.size() + " added");
+            mIncrementalCommits++;
+            for (AidElement elem : removed) {
+                if (DBG) Log.d(TAG, "Unrouting " + elem.toString());
+                batch.removeRoute(elem);
+            }
+            Collections.sort(added);
+            for (AidElement elem : added) {
+                if (DBG) Log.d(TAG, elem.toString());
+                batch.addRoute(elem);
+            }
+        }
+        // Program and commit all entries in one go
+        NfcService.getInstance().commitAidRoutes(batch.toByteArray(), reason != null);
+    }
+
+    /**
+     * The controller matches entries in the order in which they were added,
+     * and added entries end up behind the retained ones. Returns whether
+     * that breaks the sorted order for any added entry that overlaps with
+     * a retained entry, in which case the table must be rewritten.
+     */
+    boolean requiresReorder(List<AidElement> added, List<AidElement> retained) {
+        // Retained entries by the AID the controller matches on
+        TreeMap<String, List<AidElement>> retainedIndex = new TreeMap<String, List<AidElement>>();
+        for (AidElement elem : retained) {
+            String matchAid = getMatchAid(elem);
+            List<AidElement> entries = retainedIndex.get(matchAid);
+            if (entries == null) {
+                entries = new ArrayList<AidElement>(1);
+                retainedIndex.put(matchAid, entries);
+            }
+            entries.add(elem);
+        }
+        for (AidElement elem : added) {
+            String matchAid = getMatchAid(elem);
+            // Retained entries that are a prefix of, or equal to, this one
+            for (int length = 2; length <= matchAid.length(); length += 2) {
+                List<AidElement> entries = retainedIndex.get(matchAid.substring(0, length));
+                if (entries != null && mustPrecedeAny(elem, entries)) {
+                    return true;
+                }
+            }
+            // Retained entries that this one is a prefix of
+            for (List<AidElement> entries : retainedIndex.subMap(matchAid, false,
+                    matchAid + Character.MAX_VALUE, false).values()) {
+                if (mustPrecedeAny(elem, entries)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean mustPrecedeAny(AidElement elem, List<AidElement> entries) {
+        for (AidElement other : entries) {
+            if (overlaps(elem, other) && elem.compareTo(other) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the controller could match both entries for some AID,
+     * so that their relative order in the table matters.
+     */
+    boolean overlaps(AidElement a, AidElement b) {
+        String aidA = getMatchAid(a);
+        String aidB = getMatchAid(b);
+        if (aidA.length() == aidB.length()) {
+            return aidA.equals(aidB);
+        }
+        AidElement shorter = aidA.length() < aidB.length() ? a : b;
+        if (!(aidA.length() < aidB.length() ? aidB.startsWith(aidA) : aidA.startsWith(aidB))) {
+            return false;
+        }
+        // A shorter exact entry only overlaps if the controller treats it as a prefix
+        return shorter.getAid().endsWith("*") || mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY ||
+                mAidMatchingPlatform == AID_MATCHING_K;
+    }
+
+    static String getMatchAid(AidElement elem) {
+        String aid = elem.getAid();
+        return aid.endsWith("*") ? aid.substring(0, aid.length() - 1) : aid;
+    }
+
+    static boolean isSameRoute(AidElement a, AidElement b) {
+        return a.getAid().equals(b.getAid()) && a.getRouteLocation() == b.getRouteLocation() &&
+                a.getPowerState() == b.getPowerState() && a.getWeight() == b.getWeight();
     }
 
     /**
@@ -280,6 +451,7 @@ public class AidRoutingManager {
         synchronized (mLock) {
             mAidRoutingTable.clear();
             mRouteForAid.clear();
+            mCommittedRoutes.clear();
         }
     }
 
@@ -315,6 +487,10 @@ public class AidRoutingManager {
                     pw.println("        \"" + aid + "\"");
                 }
             }
+            pw.println("    Commits: " + mFullCommits + " full, " + mIncrementalCommits +
+                    " incremental, " + mSkippedCommits + " skipped (last: " +
+                    mLastRemovedRoutes + " removed, " + mLastAddedRoutes + " added)");
+            mPlanner.dump(pw);
         }
     }
 }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AidRoutingPlanner makes sure the AID routing table fits in the controller.
+ *
+ * If the requested entries are too big, AIDs that share a route and power
+ * state are first aggregated into a common prefix, provided the controller
+ * supports prefix matching and no other registered AID starts with that
+ * prefix. Longer, more specific prefixes are tried first. If the table
+ * still doesn't fit, the lowest priority entries are left out, so those
+ * AIDs end up at the default route.
+ *
+ * Entries for the default route only protect longer AIDs from a shorter
+ * entry routed elsewhere, so they are left out together with the entries
+ * that shadow them, and never on their own.
+ *
+ * Not thread-safe; AidRoutingManager calls it with its lock held.
+ */
+final class AidRoutingPlanner {
+    static final String TAG = "AidRoutingPlanner";
+    static final boolean DBG = true;
+
+    // Size of a routing table entry on top of the AID itself:
+    // tag, length, route and power state
+    static final int AID_ENTRY_OVERHEAD = 4;
+
+    // Aggregated prefixes are never shorter than the minimum AID length
+    static final int MINIMUM_PREFIX_LENGTH = 5;
+    static final int MAXIMUM_AID_LENGTH = 16;
+
+    final boolean mSupportsAggregation;
+    // Whether prefix entries need to be marked with '*'; otherwise
+    // the controller treats every entry as a prefix.
+    final boolean mMarkPrefixes;
+
+    // Registered AIDs as matched by the controller, sorted, with their routes
+    String[] mAllAids = new String[0];
+    int[] mAllRoutes = new int[0];
+    int[] mAllPowers = new int[0];
+
+    // Results of the last plan, for dump()
+    int mMaxTableSize;
+    int mRequestedSize;
+    int mPlannedSize;
+    int mNumEntries;
+    final ArrayList<String> mAggregatedPrefixes = new ArrayList<String>();
+    final ArrayList<String> mDroppedAids = new ArrayList<String>();
+
+    AidRoutingPlanner(int aidMatchingSupport) {
+        mSupportsAggregation =
+                aidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX ||
+                aidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY;
+        mMarkPrefixes = aidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX;
+    }
+
+    /**
+     * Returns the entries to program for routeCache, so that they fit in
+     * maxTableSize bytes. routeForAid and powerForAid hold the routes of all
+     * registered AIDs, including the ones at the default route; they are used
+     * to check that an aggregated prefix doesn't capture any other AID.
+     * Entries for defaultRoute are the ones protecting shadowed AIDs.
+     * A maxTableSize of 0 or less means the size is unknown.
+     */
+    Hashtable<String, AidElement> plan(Hashtable<String, AidElement> routeCache,
+            Map<String, Integer> routeForAid, Map<String, Integer> powerForAid,
+            int defaultRoute, int maxTableSize) {
+        mMaxTableSize = maxTableSize;
+        mAggregatedPrefixes.clear();
+        mDroppedAids.clear();
+
+        Hashtable<String, AidElement> entries = new Hashtable<String, AidElement>(routeCache);
+        int size = 0;
+        for (AidElement elem : entries.values()) {
+            size += getEntrySize(elem);
+        }
+        mRequestedSize = size;
+
+        if (maxTableSize > 0 && size > maxTableSize && mSupportsAggregation) {
+            indexAids(routeForAid, powerForAid);
+            for (int length = MAXIMUM_AID_LENGTH - 1;
+                    length >= MINIMUM_PREFIX_LENGTH && size > maxTableSize; length--) {
+                size -= aggregate(entries, length, size - maxTableSize);
+            }
+        }
+        if (maxTableSize > 0 && size > maxTableSize) {
+            size -= drop(entries, defaultRoute, size - maxTableSize);
+        }
+        mPlannedSize = size;
+        mNumEntries = entries.size();
+        if (DBG) Log.d(TAG, "Planned " + mNumEntries + " entries, " + mPlannedSize + "/" +
+                mMaxTableSize + " bytes");
+        return entries;
+    }
+
+    /**
+     * Replaces groups of entries that share a prefix of the given length in
+     * bytes, as well as their route and power state, by a single prefix entry.
+     * Stops once needed bytes have been saved. Returns the bytes saved.
+     */
+    int aggregate(Hashtable<String, AidElement> entries, int length, int needed) {
+        HashMap<String, ArrayList<String>> groups = new HashMap<String, ArrayList<String>>();
+        for (Map.Entry<String, AidElement> entry : entries.entrySet()) {
+            AidElement elem = entry.getValue();
+            String matchAid = AidRoutingManager.getMatchAid(elem);
+            if (matchAid.length() < length * 2) continue;
+            String groupKey = matchAid.substring(0, length * 2) + "/" +
+                    elem.getRouteLocation() + "/" + elem.getPowerState();
+            ArrayList<String> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(groupKey, group);
+            }
+            group.add(entry.getKey());
+        }
+
+        // Largest savings first
+        ArrayList<ArrayList<String>> candidates = new ArrayList<ArrayList<String>>();
+        for (ArrayList<String> group : groups.values()) {
+            if (group.size() > 1) candidates.add(group);
+        }
+        Collections.sort(candidates, new Comparator<ArrayList<String>>() {
+            @Override
+            public int compare(ArrayList<String> a, ArrayList<String> b) {
+                return b.size() - a.size();
+            }
+        });
+
+        int saved = 0;
+        for (ArrayList<String> group : candidates) {
+            if (saved >= needed) break;
+            AidElement first = entries.get(group.get(0));
+            String prefix = AidRoutingManager.getMatchAid(first).substring(0, length * 2);
+            int route = first.getRouteLocation();
+            int power = first.getPowerState();
+            if (!isUniform(prefix, route, power)) continue;
+
+            int weight = 0;
+            int groupSize = 0;
+            for (String key : group) {
+                AidElement elem = entries.remove(key);
+                weight = Math.max(weight, elem.getWeight());
+                groupSize += getEntrySize(elem);
+            }
+            AidElement aggregate = new AidElement(mMarkPrefixes ? prefix + "*" : prefix,
+                    weight, route, power);
+            entries.put(prefix + "*", aggregate);
+            saved += groupSize - getEntrySize(aggregate);
+            mAggregatedPrefixes.add(prefix + "* (" + group.size() + " entries)");
+            if (DBG) Log.d(TAG, "Aggregated " + group.size() + " entries into " + prefix + "*");
+        }
+        return saved;
+    }
+
+    /**
+     * Leaves out the lowest priority groups of entries until needed bytes
+     * have been saved. A group is an entry routed away from defaultRoute,
+     * together with the defaultRoute entries protecting the AIDs it shadows;
+     * groups sharing an entry are merged. Returns the bytes saved.
+     */
+    int drop(Hashtable<String, AidElement> entries, int defaultRoute, int needed) {
+        final int count = entries.size();
+        final String[] keys = entries.keySet().toArray(new String[count]);
+        final String[] matchAids = new String[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            matchAids[i] = AidRoutingManager.getMatchAid(entries.get(keys[i]));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return matchAids[a].compareTo(matchAids[b]);
+            }
+        });
+
+        // Union the protecting entries with every shorter entry enclosing them;
+        // in sorted order, those directly precede them
+        final int[] groupOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            groupOf[i] = i;
+        }
+        ArrayDeque<Integer> enclosing = new ArrayDeque<Integer>();
+        for (int index : order) {
+            while (!enclosing.isEmpty() && !matchAids[index].startsWith(
+                    matchAids[enclosing.peek()])) {
+                enclosing.pop();
+            }
+            if (entries.get(keys[index]).getRouteLocation() == defaultRoute) {
+                for (int other : enclosing) {
+                    union(groupOf, index, other);
+                }
+            } else {
+                enclosing.push(index);
+            }
+        }
+
+        HashMap<Integer, ArrayList<String>> groups = new HashMap<Integer, ArrayList<String>>();
+        for (int i = 0; i < count; i++) {
+            int root = find(groupOf, i);
+            ArrayList<String> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(root, group);
+            }
+            group.add(keys[i]);
+        }
+        // A group has the priority of its highest priority entry
+        final HashMap<Integer, AidElement> bestOf = new HashMap<Integer, AidElement>();
+        for (Map.Entry<Integer, ArrayList<String>> group : groups.entrySet()) {
+            AidElement best = null;
+            for (String key : group.getValue()) {
+                AidElement elem = entries.get(key);
+                if (best == null || elem.compareTo(best) < 0) best = elem;
+            }
+            bestOf.put(group.getKey(), best);
+        }
+        List<Integer> sorted = new ArrayList<Integer>(groups.keySet());
+        Collections.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return bestOf.get(a).compareTo(bestOf.get(b));
+            }
+        });
+
+        // Leave out the lowest priority groups
+        int saved = 0;
+        for (int i = sorted.size() - 1; i >= 0 && saved < needed; i--) {
+            for (String key : groups.get(sorted.get(i))) {
+                AidElement elem = entries.remove(key);
+                saved += getEntrySize(elem);
+                if (elem.getRouteLocation() != defaultRoute) {
+                    Log.e(TAG, "Routing table full, " + key + " uses the default route");
+                    mDroppedAids.add(key);
+                }
+            }
+        }
+        return saved;
+    }
+
+    static int find(int[] groupOf, int i) {
+        while (groupOf[i] != i) {
+            groupOf[i] = groupOf[groupOf[i]];
+            i = groupOf[i];
+        }
+        return i;
+    }
+
+    static void union(int[] groupOf, int a, int b) {
+        groupOf[find(groupOf, a)] = find(groupOf, b);
+    }
+
+    void indexAids(Map<String, Integer> routeForAid, Map<String, Integer> powerForAid) {
+        final int count = routeForAid.size();
+        final String[] matchAids = new String[count];
+        int[] routes = new int[count];
+        int[] powers = new int[count];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : routeForAid.entrySet()) {
+            String aid = entry.getKey();
+            Integer power = powerForAid.get(aid);
+            matchAids[i] = aid.endsWith("*") ? aid.substring(0, aid.length() - 1) : aid;
+            routes[i] = entry.getValue();
+            powers[i] = power != null ? power : 0;
+            i++;
+        }
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return matchAids[a].compareTo(matchAids[b]);
+            }
+        });
+        mAllAids = new String[count];
+        mAllRoutes = new int[count];
+        mAllPowers = new int[count];
+        for (i = 0; i < count; i++) {
+            mAllAids[i] = matchAids[order[i]];
+            mAllRoutes[i] = routes[order[i]];
+            mAllPowers[i] = powers[order[i]];
+        }
+    }
+
+    /**
+     * Returns whether every registered AID starting with prefix has the
+     * given route and power state, so a prefix entry doesn't capture others.
+     */
+    boolean isUniform(String prefix, int route, int power) {
+        // Find the first AID >= prefix
+        int low = 0;
+        int high = mAllAids.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mAllAids[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < mAllAids.length && mAllAids[i].startsWith(prefix); i++) {
+            if (mAllRoutes[i] != route || mAllPowers[i] != power) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int getEntrySize(AidElement elem) {
+        return AidRoutingManager.getMatchAid(elem).length() / 2 + AID_ENTRY_OVERHEAD;
+    }
+
+    void dump(PrintWriter pw) {
+        String utilization = mMaxTableSize > 0 ?
+                (mPlannedSize + "/" + mMaxTableSize + " bytes (" +
+                (100 * mPlannedSize / mMaxTableSize) + "%)") :
+                (mPlannedSize + " bytes, table size unknown");
+        pw.println("    Table usage: " + utilization + ", " + mNumEntries + " entries, " +
+                mRequestedSize + " bytes requested");
+        if (!mAggregatedPrefixes.isEmpty()) {
+            pw.println("    Aggregated prefixes:");
+            for (String prefix : mAggregatedPrefixes) {
+                pw.println("        " + prefix);
+            }
+        }
+        if (!mDroppedAids.isEmpty()) {
+            pw.println("    Left to the default route because the table is full:");
+            for (String aid : mDroppedAids) {
+                pw.println("        \"" + aid + "\"");
+            }
+        }
+    }
+}
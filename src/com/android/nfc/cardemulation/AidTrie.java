@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.util.Log;
+
+import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * AidTrie is an immutable, byte-level trie compiled from the resolved
+ * AID cache of {@link RegisteredAidCache}.
+ *
+ * All exact and prefix registrations that match the same AID are merged
+ * when the trie is compiled, so resolving an AID is a single walk over the
+ * raw bytes of a SELECT command: no String conversion and no allocation.
+ * The returned {@link AidResolveInfo} objects are shared and must not be
+ * modified by callers.
+ */
+final class AidTrie {
+    static final String TAG = "AidTrie";
+
+    /** Minimum AID length as per ISO7816 */
+    static final int MINIMUM_AID_LENGTH = 5;
+
+    static final byte[] NO_LABELS = new byte[0];
+    static final Node[] NO_CHILDREN = new Node[0];
+
+    static final class Node {
+        // Child labels, sorted as unsigned bytes; children[i] belongs to labels[i]
+        byte[] labels = NO_LABELS;
+        Node[] children = NO_CHILDREN;
+
+        // Registrations found in the AID cache for exactly this node
+        AidResolveInfo exactInfo;
+        AidResolveInfo prefixInfo;
+
+        // Result if the AID ends at this node
+        AidResolveInfo endMatch;
+        // Result if the AID is longer than this node, but diverges below it
+        AidResolveInfo prefixMatch;
+
+        Node findChild(byte label) {
+            final int key = label & 0xFF;
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int midKey = labels[mid] & 0xFF;
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node findOrAddChild(byte label) {
+            Node child = findChild(label);
+            if (child != null) return child;
+
+            final int key = label & 0xFF;
+            int index = 0;
+            while (index < labels.length && (labels[index] & 0xFF) < key) {
+                index++;
+            }
+            byte[] newLabels = new byte[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            child = new Node();
+            newLabels[index] = label;
+            newChildren[index] = child;
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    final Node mRoot = new Node();
+    final boolean mSupportsPrefixes;
+    // Returned when nothing matches; null if the controller doesn't
+    // support prefixes, matching a plain exact lookup.
+    final AidResolveInfo mNoMatch;
+    final int mSize;
+    // Keys of all exact AIDs in the trie, in ascending order
+    final AidKey[] mKeys;
+
+    /**
+     * Compiles a trie from a resolved AID cache, which maps exact AIDs and
+     * prefix AIDs (ending with '*') to their resolve info.
+     */
+    AidTrie(SortedMap<String, AidResolveInfo> aidCache, boolean supportsPrefixes) {
+        mSupportsPrefixes = supportsPrefixes;
+        if (supportsPrefixes) {
+            mNoMatch = new AidResolveInfo();
+            mNoMatch.category = CardEmulation.CATEGORY_OTHER;
+        } else {
+            mNoMatch = null;
+        }
+        int size = 0;
+        ArrayList<AidKey> keys = new ArrayList<AidKey>();
+        for (Map.Entry<String, AidResolveInfo> entry : aidCache.entrySet()) {
+            String aid = entry.getKey();
+            boolean isPrefix = RegisteredAidCache.isPrefix(aid);
+            if (isPrefix && !supportsPrefixes) {
+                // A plain lookup would never have matched this entry
+                continue;
+            }
+            byte[] aidBytes = aidToBytes(aid);
+            if (aidBytes == null) {
+                Log.e(TAG, "Ignoring malformed AID " + aid);
+                continue;
+            }
+            Node node = mRoot;
+            for (byte b : aidBytes) {
+                node = node.findOrAddChild(b);
+            }
+            if (isPrefix) {
+                node.prefixInfo = entry.getValue();
+            } else {
+                node.exactInfo = entry.getValue();
+                keys.add(new AidKey(aidBytes));
+            }
+            size++;
+        }
+        mSize = size;
+        // The cache is sorted by hex string, which is the same order as AidKey
+        mKeys = keys.toArray(new AidKey[keys.size()]);
+        compile(mRoot, 0, null);
+    }
+
+    /**
+     * Precomputes the merged results for each node. The merge order matches
+     * the lexicographical order of the String AID cache: shorter prefixes
+     * first, then the exact AID, then a prefix registered for that same AID.
+     */
+    void compile(Node node, int depth, AidResolveInfo inherited) {
+        if (!mSupportsPrefixes) {
+            node.endMatch = node.exactInfo;
+        } else {
+            if (depth < MINIMUM_AID_LENGTH) {
+                // Shorter registrations can never match a valid AID
+                inherited = null;
+            }
+            if (node.exactInfo != null || node.prefixInfo != null) {
+                AidResolveInfo endMatch = merge(null, inherited);
+                endMatch = merge(endMatch, node.exactInfo);
+                endMatch = merge(endMatch, node.prefixInfo);
+                node.endMatch = endMatch;
+            }
+            if (node.prefixInfo != null) {
+                inherited = merge(merge(null, inherited), node.prefixInfo);
+            }
+            node.prefixMatch = inherited;
+        }
+        for (Node child : node.children) {
+            compile(child, depth + 1, inherited);
+        }
+    }
+
+    static AidResolveInfo merge(AidResolveInfo target, AidResolveInfo entry) {
+        if (target == null) {
+            target = new AidResolveInfo();
+            target.category = CardEmulation.CATEGORY_OTHER;
+        }
+        if (entry == null) return target;
+        if (entry.defaultService != null) {
+            if (target.defaultService != null) {
+                // This shouldn't happen; for every prefix we have only one
+                // default service.
+                Log.e(TAG, "Different defaults for conflicting AIDs!");
+            }
+            target.defaultService = entry.defaultService;
+            target.category = entry.category;
+        }
+        for (ApduServiceInfo serviceInfo : entry.services) {
+            if (!target.services.contains(serviceInfo)) {
+                target.services.add(serviceInfo);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Resolves the AID held in aid[offset..offset+length).
+     */
+    AidResolveInfo resolve(byte[] aid, int offset, int length) {
+        Node node = mRoot;
+        for (int i = 0; i < length; i++) {
+            Node child = node.findChild(aid[offset + i]);
+            if (child == null) {
+                return node.prefixMatch != null ? node.prefixMatch : mNoMatch;
+            }
+            node = child;
+        }
+        if (node.endMatch != null) {
+            return node.endMatch;
+        }
+        return node.prefixMatch != null ? node.prefixMatch : mNoMatch;
+    }
+
+    /**
+     * Finds a registered AID that starts with the partial AID in
+     * partial[offset..offset+length), for SELECT by partial AID.
+     * If the AID in after[0..afterLength) starts with the partial AID, the
+     * first one that comes after it is returned; otherwise, for instance if
+     * after is null, the first such AID. Returns null if there is no (next)
+     * occurrence.
+     */
+    AidKey findOccurrence(byte[] partial, int offset, int length, byte[] after,
+            int afterLength) {
+        int index;
+        if (after != null && afterLength >= length &&
+                AidKey.compare(after, 0, length, partial, offset, length) == 0) {
+            index = upperBound(after, 0, afterLength);
+        } else {
+            index = lowerBound(partial, offset, length);
+        }
+        if (index < mKeys.length && mKeys[index].startsWith(partial, offset, length)) {
+            return mKeys[index];
+        }
+        return null;
+    }
+
+    // Index of the first key >= aid
+    int lowerBound(byte[] aid, int offset, int length) {
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final byte[] key = mKeys[mid].mBytes;
+            if (AidKey.compare(key, 0, key.length, aid, offset, length) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Index of the first key > aid
+    int upperBound(byte[] aid, int offset, int length) {
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final byte[] key = mKeys[mid].mBytes;
+            if (AidKey.compare(key, 0, key.length, aid, offset, length) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Converts a hex AID, optionally ending with '*', to bytes.
+     * Returns null if the AID is not valid hex.
+     */
+    static byte[] aidToBytes(String aid) {
+        int length = RegisteredAidCache.isPrefix(aid) ? aid.length() - 1 : aid.length();
+        if ((length % 2) != 0) return null;
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(aid.charAt(i * 2), 16);
+            int low = Character.digit(aid.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * ApduAssembler takes care of ISO7816-4 command chaining and of
+ * GET RESPONSE for HCE services, so that they always deal in whole APDUs.
+ *
+ * Commands with the chaining bit set in CLA are collected until the last
+ * command of the chain, and passed on as a single APDU, using the extended
+ * length encoding if the data doesn't fit a short one. The data is collected
+ * in a buffer that is kept across chains and taps.
+ *
+ * If enabled, responses with more data than a short command can take are
+ * split: the first 256 bytes are sent with status 61XX, and the rest is
+ * returned for GET RESPONSE commands. Splitting is off by default, as many
+ * readers accept long responses to short commands.
+ *
+ * Not thread-safe; callers must serialize access.
+ */
+final class ApduAssembler {
+    static final String TAG = "ApduAssembler";
+    static final boolean DBG = false;
+
+    // Results of add()
+    static final int RESULT_NOT_CHAINED = 0;
+    static final int RESULT_MORE = 1;
+    static final int RESULT_COMPLETE = 2;
+    static final int RESULT_ERROR = 3;
+
+    static final int INITIAL_BUFFER_SIZE = 1024;
+    static final int MAX_DATA_LENGTH = 65535;
+    static final int MAX_SHORT_DATA_LENGTH = 255;
+    static final int MAX_SHORT_RESPONSE_LENGTH = 256;
+
+    static final byte[] WRONG_LENGTH = {0x67, 0x00};
+    static final byte[] LAST_COMMAND_EXPECTED = {0x68, (byte)0x83};
+    static final byte[] CONDITIONS_NOT_SATISFIED = {0x69, (byte)0x85};
+
+    // Chain being collected: header of its first command, and data so far
+    byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    int mDataLength;
+    boolean mChaining;
+    int mCla;
+    int mIns;
+    int mP1;
+    int mP2;
+    byte[] mAssembled;
+    byte[] mError;
+
+    // Whether long responses to short commands are split
+    boolean mSplitResponses;
+
+    // Response data not yet fetched with GET RESPONSE
+    byte[] mResponse;
+    int mResponseOffset;
+
+    // Whether the last command was sent with short lengths
+    boolean mShortCommand;
+
+    /**
+     * Adds the command parsed in apdu. For RESULT_COMPLETE, getAssembled()
+     * returns the whole command; for RESULT_ERROR, getError() returns the
+     * response to send. For RESULT_MORE, the caller acknowledges the command.
+     */
+    int add(CommandApdu apdu) {
+        mAssembled = null;
+        mError = null;
+        if (!mChaining) {
+            if (!apdu.isChained()) {
+                mShortCommand = !apdu.isExtended();
+                return RESULT_NOT_CHAINED;
+            }
+            mChaining = true;
+            mCla = apdu.getCla() & ~CommandApdu.CLA_CHAINING;
+            mIns = apdu.getIns();
+            mP1 = apdu.getP1();
+            mP2 = apdu.getP2();
+            mDataLength = 0;
+        } else if ((apdu.getCla() & ~CommandApdu.CLA_CHAINING) != mCla ||
+                apdu.getIns() != mIns || apdu.getP1() != mP1 || apdu.getP2() != mP2) {
+            Log.e(TAG, "Command doesn't continue the chain, dropping chain");
+            return fail(LAST_COMMAND_EXPECTED);
+        }
+        final int length = apdu.getDataLength();
+        if (mDataLength + length > MAX_DATA_LENGTH) {
+            Log.e(TAG, "Chained command too long, dropping chain");
+            return fail(WRONG_LENGTH);
+        }
+        if (mDataLength + length > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer,
+                    Math.min(MAX_DATA_LENGTH, Math.max(mBuffer.length * 2, mDataLength + length)));
+        }
+        System.arraycopy(apdu.getApdu(), apdu.getDataOffset(), mBuffer, mDataLength, length);
+        mDataLength += length;
+        if (apdu.isChained()) {
+            return RESULT_MORE;
+        }
+        mChaining = false;
+        mShortCommand = !apdu.isExtended();
+        mAssembled = encode(apdu.getLe());
+        if (DBG) Log.d(TAG, "Assembled chain of " + mDataLength + " bytes");
+        return RESULT_COMPLETE;
+    }
+
+    int fail(byte[] error) {
+        mChaining = false;
+        mError = error;
+        return RESULT_ERROR;
+    }
+
+    byte[] encode(int le) {
+        final boolean extended = mDataLength > MAX_SHORT_DATA_LENGTH ||
+                le > MAX_SHORT_RESPONSE_LENGTH;
+        int length = CommandApdu.HEADER_LENGTH + mDataLength;
+        if (mDataLength > 0) length += extended ? 3 : 1;
+        if (le >= 0) length += extended ? (mDataLength > 0 ? 2 : 3) : 1;
+        byte[] apdu = new byte[length];
+        int offset = 0;
+        apdu[offset++] = (byte) mCla;
+        apdu[offset++] = (byte) mIns;
+        apdu[offset++] = (byte) mP1;
+        apdu[offset++] = (byte) mP2;
+        if (mDataLength > 0) {
+            if (extended) {
+                apdu[offset++] = 0;
+                apdu[offset++] = (byte) (mDataLength >> 8);
+            }
+            apdu[offset++] = (byte) mDataLength;
+            System.arraycopy(mBuffer, 0, apdu, offset, mDataLength);
+            offset += mDataLength;
+        }
+        if (le >= 0) {
+            if (extended) {
+                if (mDataLength == 0) apdu[offset++] = 0;
+                // 65536 is encoded as 0000, and 256 in a short Le as 00
+                apdu[offset++] = (byte) (le >> 8);
+            }
+            apdu[offset++] = (byte) le;
+        }
+        return apdu;
+    }
+
+    byte[] getAssembled() {
+        return mAssembled;
+    }
+
+    byte[] getError() {
+        return mError;
+    }
+
+    /**
+     * Returns the response to send for a response of the service, holding
+     * back what doesn't fit a short response if the command was short.
+     */
+    byte[] splitResponse(byte[] response) {
+        mResponse = null;
+        if (!mSplitResponses || !mShortCommand || response.length <= MAX_SHORT_RESPONSE_LENGTH + 2) {
+            return response;
+        }
+        mResponse = response;
+        mResponseOffset = 0;
+        return nextResponse(MAX_SHORT_RESPONSE_LENGTH);
+    }
+
+    void setSplitResponses(boolean split) {
+        mSplitResponses = split;
+    }
+
+    boolean hasPendingResponse() {
+        return mResponse != null;
+    }
+
+    /**
+     * Drops the rest of the pending response, for a command other than
+     * GET RESPONSE.
+     */
+    void dropPendingResponse() {
+        mResponse = null;
+    }
+
+    /**
+     * Returns the next part of the pending response for GET RESPONSE
+     * asking for le bytes: 61XX while more remains, and the status word of
+     * the service with the last part.
+     */
+    byte[] nextResponse(int le) {
+        if (mResponse == null) {
+            return CONDITIONS_NOT_SATISFIED;
+        }
+        if (le < 0 || le > MAX_SHORT_RESPONSE_LENGTH) le = MAX_SHORT_RESPONSE_LENGTH;
+        final int remaining = mResponse.length - 2 - mResponseOffset;
+        if (remaining <= le) {
+            byte[] last = Arrays.copyOfRange(mResponse, mResponseOffset, mResponse.length);
+            mResponse = null;
+            return last;
+        }
+        byte[] part = new byte[le + 2];
+        System.arraycopy(mResponse, mResponseOffset, part, 0, le);
+        mResponseOffset += le;
+        final int left = remaining - le;
+        part[le] = 0x61;
+        // 00 means 256 or more bytes are left
+        part[le + 1] = (byte) (left >= MAX_SHORT_RESPONSE_LENGTH ? 0 : left);
+        if (DBG) Log.d(TAG, "Holding back " + left + " response bytes");
+        return part;
+    }
+
+    /**
+     * Drops any partial chain and pending response.
+     */
+    void reset() {
+        mChaining = false;
+        mDataLength = 0;
+        mAssembled = null;
+        mError = null;
+        mResponse = null;
+    }
+}
@@ -37,6 +37,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.List;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -51,6 +52,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.android.nfc.NfcPermissions;
+import com.android.nfc.NfcService;
 import com.android.nfc.cardemulation.RegisteredServicesCache;
 
 /**
@@ -109,6 +111,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     }
 
     public void onUserSwitched(int userId) {
+        mHostEmulationManager.onUserSwitched();
         mServiceCache.invalidateCache(userId);
         mPreferredServices.onUserSwitched(userId);
     }
@@ -134,6 +137,12 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         verifyDefaults(userId, services);
         // Update the AID cache
         mAidCache.onServicesUpdated(userId, services);
+        if (userId == ActivityManager.getCurrentUser()) {
+            mHostEmulationManager.setStaticSelectResponses(
+                    mServiceCache.getStaticSelectResponses(userId));
+            mHostEmulationManager.setSharedChannelServices(
+                    mServiceCache.getSharedChannelServices(userId));
+        }
         // Update the preferred services list
         mPreferredServices.onServicesUpdated();
     }
@@ -393,6 +402,14 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mHostEmulationManager.onPreferredPaymentServiceChanged(service);
     }
 
+    @Override
+    public void onExpressTransitServiceChanged(ComponentName service) {
+        mAidCache.onExpressTransitServiceChanged(service);
+        mHostEmulationManager.onExpressTransitServiceChanged(service);
+        // Keep routing to host with the screen off while there is one
+        NfcService.getInstance().setExpressTransitEnabled(service != null);
+    }
+
     @Override
     public void onPreferredForegroundServiceChanged(ComponentName service) {
         mAidCache.onPreferredForegroundServiceChanged(service);
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+/**
+ * A reusable view over a command APDU as defined in ISO7816-4.
+ *
+ * parse() only records offsets and lengths into the original byte array,
+ * so a single instance can be used for every received APDU without
+ * allocating. Both short and extended length encodings are supported.
+ * Not thread-safe; callers must serialize access.
+ */
+final class CommandApdu {
+    /** Length of the CLA, INS, P1 and P2 header */
+    static final int HEADER_LENGTH = 4;
+
+    static final byte INS_SELECT = (byte) 0xA4;
+    static final byte P1_SELECT_BY_AID = 0x04;
+
+    static final byte INS_MANAGE_CHANNEL = 0x70;
+    static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    static final int P1_OPEN_CHANNEL = 0x00;
+    static final int P1_CLOSE_CHANNEL = 0x80;
+
+    // CLA of the first interindustry class: b8-b5 zero,
+    // except for secure messaging (b4-b3) and chaining (b5)
+    static final int CLA_CHANNEL_MASK = 0x03;
+    static final int CLA_CHAINING = 0x10;
+    // b8 set is a proprietary class
+    static final int CLA_PROPRIETARY = 0x80;
+
+    // P2 bits selecting which occurrence of a (partial) AID is selected
+    static final int P2_OCCURRENCE_MASK = 0x03;
+    static final int P2_FIRST_OR_ONLY_OCCURRENCE = 0x00;
+    static final int P2_LAST_OCCURRENCE = 0x01;
+    static final int P2_NEXT_OCCURRENCE = 0x02;
+    static final int P2_PREVIOUS_OCCURRENCE = 0x03;
+
+    byte[] mApdu;
+    int mLength;
+    int mCla;
+    int mIns;
+    int mP1;
+    int mP2;
+    // Offset and length of the command data field; length is Lc
+    int mDataOffset;
+    int mDataLength;
+    boolean mExtended;
+    boolean mValid;
+
+    /**
+     * Parses the APDU held in apdu. Returns false if it is not
+     * a well-formed command APDU.
+     */
+    boolean parse(byte[] apdu) {
+        mApdu = apdu;
+        mLength = apdu != null ? apdu.length : 0;
+        mDataOffset = HEADER_LENGTH;
+        mDataLength = 0;
+        mExtended = false;
+        mValid = false;
+        if (mLength < HEADER_LENGTH) {
+            return false;
+        }
+        mCla = apdu[0] & 0xFF;
+        mIns = apdu[1] & 0xFF;
+        mP1 = apdu[2] & 0xFF;
+        mP2 = apdu[3] & 0xFF;
+
+        final int bodyLength = mLength - HEADER_LENGTH;
+        if (bodyLength <= 1) {
+            // Case 1, or case 2 with short Le
+            mValid = true;
+        } else if (apdu[4] != 0) {
+            // Case 3 or 4 with short Lc; trailing bytes beyond Le
+            // are tolerated.
+            int lc = apdu[4] & 0xFF;
+            if (bodyLength >= 1 + lc) {
+                mDataOffset = HEADER_LENGTH + 1;
+                mDataLength = lc;
+                mValid = true;
+            }
+        } else if (bodyLength == 3) {
+            // Case 2 with extended Le
+            mExtended = true;
+            mValid = true;
+        } else if (bodyLength > 3) {
+            // Case 3 or 4 with extended Lc
+            int lc = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+            if (lc > 0 && bodyLength >= 3 + lc) {
+                mDataOffset = HEADER_LENGTH + 3;
+                mDataLength = lc;
+                mExtended = true;
+                mValid = true;
+            }
+        }
+        return mValid;
+    }
+
+    /**
+     * Returns whether this is a SELECT by AID (DF name) command on one of
+     * logical channels 0-3, without secure messaging or chaining.
+     */
+    boolean isSelectByAid() {
+        return mValid && (mCla & ~CLA_CHANNEL_MASK) == 0 && mIns == (INS_SELECT & 0xFF) &&
+                mP1 == P1_SELECT_BY_AID;
+    }
+
+    /**
+     * Returns whether this is a MANAGE CHANNEL command on one of
+     * logical channels 0-3.
+     */
+    boolean isManageChannel() {
+        return mValid && (mCla & ~CLA_CHANNEL_MASK) == 0 && mIns == INS_MANAGE_CHANNEL;
+    }
+
+    /**
+     * Returns whether this command is followed by more commands of a chain.
+     */
+    boolean isChained() {
+        return mValid && (mCla & CLA_PROPRIETARY) == 0 && (mCla & CLA_CHAINING) != 0;
+    }
+
+    /**
+     * Returns the logical channel encoded in cla: 0-3 for the first
+     * interindustry class, 4-19 for the further interindustry class.
+     * Proprietary classes don't encode a channel, and are taken as 0.
+     */
+    static int getLogicalChannel(int cla) {
+        if ((cla & CLA_PROPRIETARY) != 0) {
+            return 0;
+        }
+        if ((cla & 0x40) == 0) {
+            return cla & CLA_CHANNEL_MASK;
+        }
+        return 4 + (cla & 0x0F);
+    }
+
+    int getCla() {
+        return mCla;
+    }
+
+    int getIns() {
+        return mIns;
+    }
+
+    int getP1() {
+        return mP1;
+    }
+
+    int getP2() {
+        return mP2;
+    }
+
+    int getOccurrence() {
+        return mP2 & P2_OCCURRENCE_MASK;
+    }
+
+    /**
+     * Returns the maximum number of response bytes expected, Ne,
+     * or -1 if the command has no Le field.
+     */
+    int getLe() {
+        if (!mValid) return -1;
+        int leOffset;
+        if (mDataLength > 0) {
+            leOffset = mDataOffset + mDataLength;
+        } else {
+            // Case 2; an extended Le is preceded by a zero byte
+            leOffset = mExtended ? HEADER_LENGTH + 1 : HEADER_LENGTH;
+        }
+        if (mExtended) {
+            if (mLength - leOffset < 2) return -1;
+            int le = ((mApdu[leOffset] & 0xFF) << 8) | (mApdu[leOffset + 1] & 0xFF);
+            return le == 0 ? 65536 : le;
+        } else {
+            if (mLength - leOffset < 1) return -1;
+            int le = mApdu[leOffset] & 0xFF;
+            return le == 0 ? 256 : le;
+        }
+    }
+
+    byte[] getApdu() {
+        return mApdu;
+    }
+
+    int getDataOffset() {
+        return mDataOffset;
+    }
+
+    int getDataLength() {
+        return mDataLength;
+    }
+
+    boolean isExtended() {
+        return mExtended;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.AidGroup;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.Xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * DynamicAidStore persists the AID groups that services register at runtime.
+ *
+ * The file starts with a magic number and a format version, followed by
+ * change records. Every record is framed by its length and a CRC32, so a
+ * record that was only partially written is detected and dropped on load.
+ * Changes are appended to the file; once most records in the file are
+ * outdated, it is compacted into one record per live AID group.
+ *
+ * The file is read with a single read on load. If there is no binary file
+ * yet, the dynamic_aids.xml file written by earlier versions is migrated.
+ *
+ * Not thread-safe; RegisteredServicesCache calls it with its lock held.
+ */
+final class DynamicAidStore {
+    static final String TAG = "DynamicAidStore";
+    static final boolean DBG = true;
+
+    static final String FILE_NAME = "dynamic_aids.bin";
+    static final String LEGACY_XML_FILE_NAME = "dynamic_aids.xml";
+
+    static final int MAGIC = 0x4E464344; // "NFCD"
+    static final int VERSION = 1;
+
+    static final byte RECORD_SET_GROUP = 1;
+    static final byte RECORD_REMOVE_GROUP = 2;
+    static final byte RECORD_REMOVE_SERVICE = 3;
+
+    // Compact once the file holds more than this many outdated records,
+    // and more outdated than live ones
+    static final int COMPACT_MIN_OUTDATED_RECORDS = 16;
+
+    static final class Entry {
+        final int uid;
+        final ComponentName component;
+        final AidGroup group;
+
+        Entry(int uid, ComponentName component, AidGroup group) {
+            this.uid = uid;
+            this.component = component;
+            this.group = group;
+        }
+    }
+
+    final AtomicFile mFile;
+    // Left by AtomicFile while rewriting mFile; wins over mFile on read
+    final File mBackupFile;
+    final AtomicFile mLegacyXmlFile;
+
+    // Live AID groups, keyed by uid, component and category
+    final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    // Number of records currently in the file
+    int mNumRecords;
+
+    int mNumAppends;
+    int mNumCompactions;
+
+    DynamicAidStore(File dataDir) {
+        mFile = new AtomicFile(new File(dataDir, FILE_NAME));
+        mBackupFile = new File(dataDir, FILE_NAME + ".bak");
+        mLegacyXmlFile = new AtomicFile(new File(dataDir, LEGACY_XML_FILE_NAME));
+    }
+
+    /**
+     * Loads all live AID groups, migrating the legacy XML file if needed.
+     */
+    Collection<Entry> load() {
+        mEntries.clear();
+        mNumRecords = 0;
+        if (mFile.getBaseFile().exists() || mBackupFile.exists()) {
+            if (!readLocked()) {
+                // Drop whatever couldn't be read
+                compact();
+            }
+        } else if (mLegacyXmlFile.getBaseFile().exists()) {
+            readLegacyXml();
+            if (compact()) {
+                mLegacyXmlFile.delete();
+                if (DBG) Log.d(TAG, "Migrated " + mEntries.size() + " AID groups from XML");
+            }
+        }
+        return mEntries.values();
+    }
+
+    boolean putAidGroup(int uid, ComponentName component, AidGroup group) {
+        Entry entry = new Entry(uid, component, group);
+        if (!append(encode(RECORD_SET_GROUP, entry))) {
+            return false;
+        }
+        mEntries.put(getKey(uid, component, group.getCategory()), entry);
+        return true;
+    }
+
+    boolean removeAidGroup(int uid, ComponentName component, String category) {
+        String key = getKey(uid, component, category);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return true;
+        }
+        if (!append(encode(RECORD_REMOVE_GROUP, entry))) {
+            return false;
+        }
+        mEntries.remove(key);
+        return true;
+    }
+
+    boolean removeService(int uid, ComponentName component) {
+        Entry removal = new Entry(uid, component, null);
+        if (!append(encode(RECORD_REMOVE_SERVICE, removal))) {
+            return false;
+        }
+        removeServiceEntries(uid, component);
+        return true;
+    }
+
+    void removeServiceEntries(int uid, ComponentName component) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (java.util.Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.uid == uid && entry.component.equals(component)) {
+                keys.add(e.getKey());
+            }
+        }
+        for (String key : keys) {
+            mEntries.remove(key);
+        }
+    }
+
+    static String getKey(int uid, ComponentName component, String category) {
+        return uid + "/" + component.flattenToString() + "/" + category;
+    }
+
+    /**
+     * Appends a record, or rewrites the file if that is due anyway
+     * or the append failed.
+     */
+    boolean append(byte[] record) {
+        int outdated = mNumRecords + 1 - mEntries.size();
+        if (outdated > COMPACT_MIN_OUTDATED_RECORDS && outdated > mEntries.size()) {
+            // Compact first, then append to the compacted file
+            compact();
+        }
+        // Records appended next to a backup of an interrupted rewrite would
+        // be lost on the next read, so rewrite the file first
+        if ((!mFile.getBaseFile().exists() || mBackupFile.exists()) && !compact()) {
+            return false;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile.getBaseFile(), true);
+            fos.write(record);
+            fos.getFD().sync();
+            mNumRecords++;
+            mNumAppends++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to dynamic AIDs, rewriting", e);
+            // The file may end in a partial record now; rewriting it
+            // without this change drops that.
+            compact();
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with one record per live AID group.
+     */
+    boolean compact() {
+        FileOutputStream fos = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry entry : mEntries.values()) {
+                out.write(encode(RECORD_SET_GROUP, entry));
+            }
+            out.flush();
+            fos = mFile.startWrite();
+            fos.write(bytes.toByteArray());
+            mFile.finishWrite(fos);
+            mNumRecords = mEntries.size();
+            mNumCompactions++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing dynamic AIDs", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a framed record: length, CRC32 of the payload, payload.
+     */
+    static byte[] encode(byte type, Entry entry) {
+        try {
+            ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(payloadBytes);
+            payload.writeByte(type);
+            payload.writeInt(entry.uid);
+            payload.writeUTF(entry.component.flattenToString());
+            if (type == RECORD_SET_GROUP) {
+                List<String> aids = entry.group.getAids();
+                payload.writeUTF(entry.group.getCategory());
+                payload.writeInt(aids.size());
+                for (String aid : aids) {
+                    payload.writeUTF(aid);
+                }
+            } else if (type == RECORD_REMOVE_GROUP) {
+                payload.writeUTF(entry.group.getCategory());
+            }
+            payload.flush();
+            byte[] data = payloadBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(data.length + 8);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            record.writeInt(data.length);
+            record.writeInt((int) crc.getValue());
+            record.write(data);
+            record.flush();
+            return recordBytes.toByteArray();
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the file and applies its records. Returns false if the
+     * file was corrupt or ended in a partial record.
+     */
+    boolean readLocked() {
+        byte[] contents;
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            File file = mFile.getBaseFile();
+            contents = new byte[(int) file.length()];
+            new DataInputStream(fis).readFully(contents);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read dynamic AIDs file, trashing.", e);
+            return false;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        int offset = 8;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown dynamic AIDs file format, trashing.");
+                return false;
+            }
+            while (offset < contents.length) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || offset + 8 + length > contents.length) {
+                    Log.e(TAG, "Partial record in dynamic AIDs file, dropping it.");
+                    return false;
+                }
+                CRC32 actual = new CRC32();
+                actual.update(contents, offset + 8, length);
+                if ((int) actual.getValue() != crc) {
+                    Log.e(TAG, "Corrupt record in dynamic AIDs file, dropping the rest.");
+                    return false;
+                }
+                applyRecord(in);
+                mNumRecords++;
+                offset += 8 + length;
+            }
+            return true;
+        } catch (EOFException e) {
+            Log.e(TAG, "Truncated dynamic AIDs file.");
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not parse dynamic AIDs file.", e);
+            return false;
+        }
+    }
+
+    void applyRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int uid = in.readInt();
+        ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+        if (component == null) {
+            throw new IOException("Invalid component");
+        }
+        switch (type) {
+            case RECORD_SET_GROUP: {
+                String category = in.readUTF();
+                int numAids = in.readInt();
+                ArrayList<String> aids = new ArrayList<String>(numAids);
+                for (int i = 0; i < numAids; i++) {
+                    aids.add(in.readUTF());
+                }
+                mEntries.put(getKey(uid, component, category),
+                        new Entry(uid, component, new AidGroup(aids, category)));
+                break;
+            }
+            case RECORD_REMOVE_GROUP:
+                mEntries.remove(getKey(uid, component, in.readUTF()));
+                break;
+            case RECORD_REMOVE_SERVICE:
+                removeServiceEntries(uid, component);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    void readLegacyXml() {
+        FileInputStream fis = null;
+        try {
+            fis = mLegacyXmlFile.openRead();
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(fis, null);
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG &&
+                    eventType != XmlPullParser.END_DOCUMENT) {
+                eventType = parser.next();
+            }
+            String tagName = parser.getName();
+            if ("services".equals(tagName)) {
+                boolean inService = false;
+                ComponentName currentComponent = null;
+                int currentUid = -1;
+                ArrayList<AidGroup> currentGroups = new ArrayList<AidGroup>();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    tagName = parser.getName();
+                    if (eventType == XmlPullParser.START_TAG) {
+                        if ("service".equals(tagName) && parser.getDepth() == 2) {
+                            String compString = parser.getAttributeValue(null, "component");
+                            String uidString = parser.getAttributeValue(null, "uid");
+                            if (compString == null || uidString == null) {
+                                Log.e(TAG, "Invalid service attributes");
+                            } else {
+                                try {
+                                    currentUid = Integer.parseInt(uidString);
+                                    currentComponent = ComponentName.unflattenFromString(compString);
+                                    inService = true;
+                                } catch (NumberFormatException e) {
+                                    Log.e(TAG, "Could not parse service uid");
+                                }
+                            }
+                        }
+                        if ("aid-group".equals(tagName) && parser.getDepth() == 3 && inService) {
+                            AidGroup group = AidGroup.createFromXml(parser);
+                            if (group != null) {
+                                currentGroups.add(group);
+                            } else {
+                                Log.e(TAG, "Could not parse AID group.");
+                            }
+                        }
+                    } else if (eventType == XmlPullParser.END_TAG) {
+                        if ("service".equals(tagName)) {
+                            // See if we have a valid service
+                            if (currentComponent != null && currentUid >= 0) {
+                                for (AidGroup group : currentGroups) {
+                                    mEntries.put(getKey(currentUid, currentComponent,
+                                            group.getCategory()),
+                                            new Entry(currentUid, currentComponent, group));
+                                }
+                            }
+                            currentUid = -1;
+                            currentComponent = null;
+                            currentGroups.clear();
+                            inService = false;
+                        }
+                    }
+                    eventType = parser.next();
+                };
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not parse dynamic AIDs file, trashing.");
+            mLegacyXmlFile.delete();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Dynamic AID store: " + mEntries.size() + " AID groups, " + mNumRecords +
+                " records in file, " + mNumAppends + " appends, " + mNumCompactions +
+                " compactions");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import java.io.PrintWriter;
+
+/**
+ * Latencies of the stages of handling a command APDU on the host.
+ *
+ * A stage that didn't happen for an APDU, such as binding when the service
+ * was already bound, is left out of its histogram. Timestamps are from
+ * SystemClock.elapsedRealtimeNanos(); 0 means the stage didn't happen.
+ *
+ * Thread-safe.
+ */
+final class HceLatencyStats {
+    final LatencyHistogram mResolve = new LatencyHistogram("Received to AID resolved");
+    final LatencyHistogram mBind = new LatencyHistogram("AID resolved to service bound");
+    final LatencyHistogram mForward = new LatencyHistogram("Received to forwarded to service");
+    final LatencyHistogram mService = new LatencyHistogram("Forwarded to response received");
+    final LatencyHistogram mDispatch = new LatencyHistogram("Response queued to handled");
+    final LatencyHistogram mSend = new LatencyHistogram("sendData");
+    final LatencyHistogram mTotal = new LatencyHistogram("Received to response sent");
+
+    void add(long receivedNanos, long resolvedNanos, long boundNanos, long forwardedNanos,
+            long responseNanos, long dispatchUs, long sendStartNanos, long sentNanos) {
+        if (resolvedNanos != 0) {
+            mResolve.add((resolvedNanos - receivedNanos) / 1000);
+            if (boundNanos != 0) {
+                mBind.add((boundNanos - resolvedNanos) / 1000);
+            }
+        }
+        mForward.add((forwardedNanos - receivedNanos) / 1000);
+        mService.add((responseNanos - forwardedNanos) / 1000);
+        mDispatch.add(dispatchUs);
+        mSend.add((sentNanos - sendStartNanos) / 1000);
+        mTotal.add((sentNanos - receivedNanos) / 1000);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        LatencyHistogram[] histograms = {
+            mTotal, mResolve, mBind, mForward, mService, mDispatch, mSend
+        };
+        for (LatencyHistogram histogram : histograms) {
+            if (histogram.getCount() > 0) {
+                histogram.dump(pw, prefix);
+            }
+        }
+    }
+}
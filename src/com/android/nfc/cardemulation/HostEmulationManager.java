@@ -44,21 +44,31 @@ import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
 import com.android.nfc.NfcService;
+import com.android.nfc.R;
 import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 
-public class HostEmulationManager {
+public class HostEmulationManager implements HostServicePool.Callback {
     static final String TAG = "HostEmulationManager";
     static final boolean DBG = true;
 
@@ -75,30 +85,49 @@ public class HostEmulationManager {
     /** Minimum AID lenth as per ISO7816 */
     static final int MINIMUM_AID_LENGTH = 5;
 
-    /** Length of Select APDU header including length byte */
-    static final int SELECT_APDU_HDR_LENGTH = 5;
+    /** Maximum AID lenth as per ISO7816 */
+    static final int MAXIMUM_AID_LENGTH = 16;
 
-    static final byte INSTR_SELECT = (byte)0xA4;
-
-    static final String ANDROID_HCE_AID = "A000000476416E64726F6964484345";
+    static final AidKey ANDROID_HCE_AID = AidKey.fromString("A000000476416E64726F6964484345");
     static final byte[] ANDROID_HCE_RESPONSE = {0x14, (byte)0x81, 0x00, 0x00, (byte)0x90, 0x00};
 
+    /** Maximum number of APDUs queued per session while a service is being bound */
+    static final int MAX_PENDING_APDUS = 8;
+
+    /**
+     * Time a service gets to respond to a command, before the reader is
+     * answered with an error so that queued commands don't wait forever
+     */
+    static final long RESPONSE_TIMEOUT_MS = 5000;
+
+    /** Number of past sessions kept for dumpsys */
+    static final int NUM_SESSION_STATS = 8;
+
+    /** Logical channels 0-3 of the first interindustry class */
+    static final int NUM_LOGICAL_CHANNELS = 4;
+
     static final byte[] AID_NOT_FOUND = {0x6A, (byte)0x82};
     static final byte[] UNKNOWN_ERROR = {0x6F, 0x00};
+    static final byte[] RESPONSE_OK = {(byte)0x90, 0x00};
+    static final byte[] LOGICAL_CHANNEL_NOT_SUPPORTED = {0x68, (byte)0x81};
+    static final byte[] FUNCTION_NOT_SUPPORTED = {0x6A, (byte)0x81};
+    static final byte[] INCORRECT_P1_P2 = {0x6A, (byte)0x86};
 
     final Context mContext;
     final RegisteredAidCache mAidCache;
-    final Messenger mMessenger = new Messenger (new MessageHandler());
+    // Service responses are handled on a dedicated thread, so they don't
+    // wait behind unrelated work on the main thread before being sent.
+    final HandlerThread mResponseThread;
+    final Handler mResponseHandler;
+    final Messenger mMessenger;
     final KeyguardManager mKeyguard;
     final Object mLock;
 
     // All variables below protected by mLock
 
-    // Variables below are for a non-payment service,
-    // that is typically only bound in the STATE_XFER state.
-    Messenger mService;
-    boolean mServiceBound;
-    ComponentName mServiceName;
+    // Non-payment services are bound through this pool, which keeps
+    // the most recently selected ones bound across taps.
+    final HostServicePool mServicePool;
 
     // Variables below are for a payment service,
     // which is typically bound persistently to improve on
@@ -107,16 +136,122 @@ public class HostEmulationManager {
     boolean mPaymentServiceBound;
     ComponentName mPaymentServiceName;
 
+    // The service designated for express transit is kept bound like the
+    // payment service, and its AIDs are served with the screen off
+    ComponentName mExpressTransitServiceName;
+    Messenger mExpressTransitService;
+    boolean mExpressTransitServiceBinding;
+
     // mActiveService denotes the service interface
     // that is the current active one, until a new SELECT AID
     // comes in that may be resolved to a different service.
     // On deactivation, mActiveService stops being valid.
+    // With logical channels, it is the service selected on the
+    // channel of the last command, mChannel.
     Messenger mActiveService;
     ComponentName mActiveServiceName;
+    int mChannel;
+
+    // Logical channels opened with MANAGE CHANNEL, and the service
+    // selected on each. The basic channel 0 is always open.
+    final boolean[] mChannelOpen = new boolean[NUM_LOGICAL_CHANNELS];
+    final Messenger[] mChannelServices = new Messenger[NUM_LOGICAL_CHANNELS];
+    final ComponentName[] mChannelServiceNames = new ComponentName[NUM_LOGICAL_CHANNELS];
 
-    String mLastSelectedAid;
+    // The last selected AID, kept in a preallocated buffer
+    final byte[] mLastSelectedAid = new byte[MAXIMUM_AID_LENGTH];
+    int mLastSelectedAidLength;
+    // Re-used for parsing every incoming APDU
+    final CommandApdu mCommandApdu = new CommandApdu();
+    // Reassembles chained commands and splits long responses
+    final ApduAssembler mApduAssembler = new ApduAssembler();
     int mState;
     byte[] mSelectApdu;
+    // The service mSelectApdu is waiting for in STATE_W4_SERVICE
+    ComponentName mPendingServiceName;
+    // APDUs received after mSelectApdu while in STATE_W4_SERVICE, passed on
+    // one at a time once the response to the previous one was sent
+    final ArrayDeque<byte[]> mPendingApdus = new ArrayDeque<byte[]>(MAX_PENDING_APDUS);
+    // Whether a command was sent to a service and its response is due
+    boolean mAwaitingResponse;
+    // Answers the reader if the response doesn't come in time
+    final Runnable mResponseTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                onResponseTimeoutLocked();
+            }
+        }
+    };
+    long mBindWaitStartTime;
+
+    // Statistics on APDUs queued while waiting for a service to be bound,
+    // for the current session and for the last NUM_SESSION_STATS sessions
+    static final class SessionStats {
+        int queuedApdus;
+        int droppedApdus;
+        int maxQueueDepth;
+        int bindWaits;
+        long bindWaitTimeMs;
+
+        void reset() {
+            queuedApdus = 0;
+            droppedApdus = 0;
+            maxQueueDepth = 0;
+            bindWaits = 0;
+            bindWaitTimeMs = 0;
+        }
+
+        void copyFrom(SessionStats other) {
+            queuedApdus = other.queuedApdus;
+            droppedApdus = other.droppedApdus;
+            maxQueueDepth = other.maxQueueDepth;
+            bindWaits = other.bindWaits;
+            bindWaitTimeMs = other.bindWaitTimeMs;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queuedApdus + ", dropped=" + droppedApdus +
+                    ", maxDepth=" + maxQueueDepth + ", bindWaits=" + bindWaits +
+                    ", bindWaitTime=" + bindWaitTimeMs + "ms";
+        }
+    }
+    final SessionStats mSessionStats = new SessionStats();
+    final SessionStats[] mPastSessionStats = new SessionStats[NUM_SESSION_STATS];
+    int mNumPastSessions;
+
+    // Timestamps of the stages of handling the current command APDU.
+    // APDUs queued while binding count as received once they are dequeued.
+    long mApduReceivedNanos;
+    long mApduResolvedNanos;
+    long mApduBoundNanos;
+    long mCommandSentNanos;
+    // Latency of HCE responses, over all services and per service
+    final HceLatencyStats mLatencyStats = new HceLatencyStats();
+    final HashMap<ComponentName, HceLatencyStats> mServiceLatencyStats =
+            new HashMap<ComponentName, HceLatencyStats>();
+
+    // Services that opted in to shared memory APDUs in their meta-data
+    HashSet<ComponentName> mSharedChannelServices = new HashSet<ComponentName>();
+    // Shared memory offered to bound services, by their binder, used for
+    // their APDUs once accepted. Kept for as long as the services stay bound.
+    // A null value means offering failed.
+    final HashMap<IBinder, SharedApduChannel> mSharedChannels =
+            new HashMap<IBinder, SharedApduChannel>();
+    int mSharedChannelApdus;
+    int mMessengerApdus;
+
+    // Static SELECT responses of the current user's services
+    HashMap<ComponentName, StaticSelectResponses> mStaticSelectResponses =
+            new HashMap<ComponentName, StaticSelectResponses>();
+    // Whether the SELECT about to be forwarded was already answered
+    boolean mSelectAnswered;
+    // Service whose response to the outstanding command is dropped, because
+    // that command was a SELECT already answered statically, or the reader
+    // was answered with an error after a timeout; null if none
+    IBinder mDropResponseFrom;
+    int mStaticSelectResponsesSent;
 
     int mScreenState;
 
@@ -127,6 +262,14 @@ public class HostEmulationManager {
         mState = STATE_IDLE;
         mScreenState = SCREEN_STATE_ON_UNLOCKED;
         mKeyguard = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+        mChannelOpen[0] = true;
+        mApduAssembler.setSplitResponses(context.getResources().getBoolean(
+                R.bool.split_long_hce_responses));
+        mServicePool = new HostServicePool(context, mLock, this);
+        mResponseThread = new HandlerThread("HceResponse", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mResponseThread.start();
+        mResponseHandler = new MessageHandler(mResponseThread.getLooper());
+        mMessenger = new Messenger(mResponseHandler);
     }
 
     public void onPreferredPaymentServiceChanged(ComponentName service) {
@@ -139,16 +282,45 @@ public class HostEmulationManager {
         }
      }
 
+    public void onExpressTransitServiceChanged(ComponentName service) {
+        synchronized (mLock) {
+            if (service != null) {
+                bindExpressTransitServiceLocked(ActivityManager.getCurrentUser(), service);
+            } else {
+                unbindExpressTransitServiceLocked();
+            }
+        }
+    }
+
      public void onPreferredForegroundServiceChanged(ComponentName service) {
          synchronized (mLock) {
             if (service != null) {
+               // Warm up the binding; the pool unbinds it again once idle
                bindServiceIfNeededLocked(service);
-            } else {
-               unbindServiceIfNeededLocked();
             }
          }
      }
 
+    public void onUserSwitched() {
+        synchronized (mLock) {
+            mServicePool.unbindAllLocked();
+            closeSharedChannelsLocked();
+        }
+    }
+
+    public void setStaticSelectResponses(
+            HashMap<ComponentName, StaticSelectResponses> responses) {
+        synchronized (mLock) {
+            mStaticSelectResponses = responses;
+        }
+    }
+
+    public void setSharedChannelServices(HashSet<ComponentName> services) {
+        synchronized (mLock) {
+            mSharedChannelServices = services;
+        }
+    }
+
     public void setScreenState(int state) {
         mScreenState = state;
     }
@@ -164,132 +336,397 @@ public class HostEmulationManager {
             if (mState != STATE_IDLE) {
                 Log.e(TAG, "Got activation event in non-idle state");
             }
+            mSessionStats.reset();
+            mPendingApdus.clear();
+            clearAwaitingResponseLocked();
+            mApduAssembler.reset();
+            mSelectAnswered = false;
+            mDropResponseFrom = null;
+            // "Next occurrence" starts over with every tap
+            mLastSelectedAidLength = 0;
             mState = STATE_W4_SELECT;
         }
     }
 
     public void onHostEmulationData(byte[] data) {
         Log.d(TAG, "notifyHostEmulationData");
-        String selectAid = findSelectAid(data);
-        ComponentName resolvedService = null;
         synchronized (mLock) {
-            if (mState == STATE_IDLE) {
-                Log.e(TAG, "Got data in idle state.");
+            onHostEmulationDataLocked(data);
+        }
+    }
+
+    void onHostEmulationDataLocked(byte[] data) {
+        if (mState == STATE_W4_SERVICE || mAwaitingResponse || !mPendingApdus.isEmpty()) {
+            // Keep pipelined APDUs until the service is bound, and keep them
+            // in order until the ones before them were answered. A reader
+            // only sends a command while one is outstanding at a service
+            // after a statically answered SELECT.
+            if (mPendingApdus.size() < MAX_PENDING_APDUS) {
+                mPendingApdus.add(data);
+                mSessionStats.queuedApdus++;
+                mSessionStats.maxQueueDepth = Math.max(mSessionStats.maxQueueDepth,
+                        mPendingApdus.size());
+                Log.d(TAG, "Queued APDU in state " + mState);
+            } else {
+                mSessionStats.droppedApdus++;
+                Log.e(TAG, "APDU queue full, dropping APDU in state " + mState);
+            }
+            return;
+        }
+        processApduLocked(data);
+    }
+
+    /**
+     * Passes on queued APDUs, one at a time: each one sent to a service
+     * waits for the response to the one before it.
+     */
+    void processPendingApdusLocked() {
+        while (mState == STATE_XFER && !mAwaitingResponse && !mPendingApdus.isEmpty()) {
+            processApduLocked(mPendingApdus.poll());
+        }
+    }
+
+    void clearAwaitingResponseLocked() {
+        mAwaitingResponse = false;
+        mResponseHandler.removeCallbacks(mResponseTimeout);
+    }
+
+    /**
+     * Answers the commands the reader is waiting for with an error when the
+     * active service didn't respond in time.
+     */
+    void onResponseTimeoutLocked() {
+        if (!mAwaitingResponse) return;
+        Log.e(TAG, "No response from " + mActiveServiceName + " within " +
+                RESPONSE_TIMEOUT_MS + "ms");
+        mAwaitingResponse = false;
+        if (mState != STATE_XFER) return;
+        if (mDropResponseFrom == null) {
+            // The reader is waiting for the response to the command itself
+            NfcService.getInstance().sendData(UNKNOWN_ERROR);
+        }
+        // Should the response still come, it belongs to no command
+        mDropResponseFrom = mActiveService != null ? mActiveService.getBinder() : null;
+        if (!mPendingApdus.isEmpty()) {
+            Log.e(TAG, "Answering " + mPendingApdus.size() + " queued APDUs with an error");
+            mSessionStats.droppedApdus += mPendingApdus.size();
+            while (mPendingApdus.poll() != null) {
+                NfcService.getInstance().sendData(UNKNOWN_ERROR);
+            }
+        }
+    }
+
+    void processApduLocked(byte[] data) {
+        ComponentName resolvedService = null;
+        mApduReceivedNanos = SystemClock.elapsedRealtimeNanos();
+        mApduResolvedNanos = 0;
+        mApduBoundNanos = 0;
+        boolean isSelect = isSelectAidLocked(data);
+        if (mState == STATE_IDLE) {
+            Log.e(TAG, "Got data in idle state.");
+            return;
+        } else if (mState == STATE_W4_DEACTIVATE) {
+            Log.e(TAG, "Dropping APDU in STATE_W4_DECTIVATE");
+            return;
+        }
+        if (mScreenState == SCREEN_STATE_OFF && mExpressTransitServiceName == null) {
+            NfcService.getInstance().sendData(AID_NOT_FOUND);
+            return;
+        }
+        final int channel = data != null && data.length > 0 ?
+                CommandApdu.getLogicalChannel(data[0] & 0xFF) : 0;
+        if (channel >= NUM_LOGICAL_CHANNELS || !mChannelOpen[channel]) {
+            NfcService.getInstance().sendData(LOGICAL_CHANNEL_NOT_SUPPORTED);
+            return;
+        }
+        if (mApduAssembler.hasPendingResponse()) {
+            if (mCommandApdu.getIns() == (CommandApdu.INS_GET_RESPONSE & 0xFF) &&
+                    !mCommandApdu.isChained()) {
+                NfcService.getInstance().sendData(
+                        mApduAssembler.nextResponse(mCommandApdu.getLe()));
                 return;
-            } else if (mState == STATE_W4_DEACTIVATE) {
-                Log.e(TAG, "Dropping APDU in STATE_W4_DECTIVATE");
+            }
+            // Any other command drops the rest of the response
+            if (DBG) Log.d(TAG, "Dropping rest of response");
+            mApduAssembler.dropPendingResponse();
+        }
+        switch (mApduAssembler.add(mCommandApdu)) {
+            case ApduAssembler.RESULT_MORE:
+                NfcService.getInstance().sendData(RESPONSE_OK);
+                return;
+            case ApduAssembler.RESULT_ERROR:
+                NfcService.getInstance().sendData(mApduAssembler.getError());
+                return;
+            case ApduAssembler.RESULT_COMPLETE:
+                data = mApduAssembler.getAssembled();
+                isSelect = isSelectAidLocked(data);
+                break;
+        }
+        if (mCommandApdu.isManageChannel()) {
+            manageChannelLocked(channel);
+            return;
+        }
+        setChannelLocked(channel);
+        if (mScreenState == SCREEN_STATE_OFF && !isSelect &&
+                !mExpressTransitServiceName.equals(mActiveServiceName)) {
+            // With the screen off, only the express transit service is reachable
+            NfcService.getInstance().sendData(AID_NOT_FOUND);
+            return;
+        }
+        if (isSelect) {
+            final int aidOffset = mCommandApdu.getDataOffset();
+            final int aidLength = mCommandApdu.getDataLength();
+            if (ANDROID_HCE_AID.matches(data, aidOffset, aidLength)) {
+                NfcService.getInstance().sendData(ANDROID_HCE_RESPONSE);
+                return;
+            }
+            AidResolveInfo resolveInfo = resolveSelectAidLocked(data, aidOffset, aidLength,
+                    mCommandApdu.getOccurrence());
+            mApduResolvedNanos = SystemClock.elapsedRealtimeNanos();
+            if (resolveInfo == null || resolveInfo.services.size() == 0) {
+                // Tell the remote we don't handle this AID
+                NfcService.getInstance().sendData(AID_NOT_FOUND);
                 return;
             }
-            if (mScreenState == SCREEN_STATE_OFF) {
+            if (mScreenState == SCREEN_STATE_OFF && (resolveInfo.defaultService == null ||
+                    !mExpressTransitServiceName.equals(
+                            resolveInfo.defaultService.getComponent()))) {
                 NfcService.getInstance().sendData(AID_NOT_FOUND);
                 return;
             }
-            if (selectAid != null) {
-                if (selectAid.equals(ANDROID_HCE_AID)) {
-                    NfcService.getInstance().sendData(ANDROID_HCE_RESPONSE);
+            if (resolveInfo.defaultService != null) {
+                // Resolve to default
+                // Check if resolvedService requires unlock
+                ApduServiceInfo defaultServiceInfo = resolveInfo.defaultService;
+                if (defaultServiceInfo.requiresUnlock() &&
+                        mKeyguard.isKeyguardLocked() && mKeyguard.isKeyguardSecure()) {
+                    // Just ignore all future APDUs until next tap
+                    mState = STATE_W4_DEACTIVATE;
+                    launchTapAgain(resolveInfo.defaultService, resolveInfo.category);
                     return;
                 }
-                AidResolveInfo resolveInfo = mAidCache.resolveAid(selectAid);
-                if (resolveInfo == null || resolveInfo.services.size() == 0) {
-                    // Tell the remote we don't handle this AID
+                // In no circumstance should this be an OffHostService -
+                // we should never get this AID on the host in the first place
+                if (!defaultServiceInfo.isOnHost()) {
+                    Log.e(TAG, "AID that was meant to go off-host was routed to host." +
+                            " Check routing table configuration.");
                     NfcService.getInstance().sendData(AID_NOT_FOUND);
                     return;
                 }
-                mLastSelectedAid = selectAid;
-                if (resolveInfo.defaultService != null) {
-                    // Resolve to default
-                    // Check if resolvedService requires unlock
-                    ApduServiceInfo defaultServiceInfo = resolveInfo.defaultService;
-                    if (defaultServiceInfo.requiresUnlock() &&
-                            mKeyguard.isKeyguardLocked() && mKeyguard.isKeyguardSecure()) {
-                        // Just ignore all future APDUs until next tap
-                        mState = STATE_W4_DEACTIVATE;
-                        launchTapAgain(resolveInfo.defaultService, resolveInfo.category);
-                        return;
+                resolvedService = defaultServiceInfo.getComponent();
+            } else if (mActiveServiceName != null) {
+                for (ApduServiceInfo serviceInfo : resolveInfo.services) {
+                    if (mActiveServiceName.equals(serviceInfo.getComponent())) {
+                        resolvedService = mActiveServiceName;
+                        break;
                     }
-                    // In no circumstance should this be an OffHostService -
-                    // we should never get this AID on the host in the first place
-                    if (!defaultServiceInfo.isOnHost()) {
-                        Log.e(TAG, "AID that was meant to go off-host was routed to host." +
-                                " Check routing table configuration.");
-                        NfcService.getInstance().sendData(AID_NOT_FOUND);
-                        return;
-                    }
-                    resolvedService = defaultServiceInfo.getComponent();
-                } else if (mActiveServiceName != null) {
-                    for (ApduServiceInfo serviceInfo : resolveInfo.services) {
-                        if (mActiveServiceName.equals(serviceInfo.getComponent())) {
-                            resolvedService = mActiveServiceName;
-                            break;
-                        }
-                    }
-                }
-                if (resolvedService == null) {
-                    // We have no default, and either one or more services.
-                    // Ask the user to confirm.
-                    // Just ignore all future APDUs until we resolve to only one
-                    mState = STATE_W4_DEACTIVATE;
-                    launchResolver((ArrayList<ApduServiceInfo>)resolveInfo.services, null,
-                            resolveInfo.category);
-                    return;
                 }
             }
-            switch (mState) {
-            case STATE_W4_SELECT:
-                if (selectAid != null) {
-                    Messenger existingService = bindServiceIfNeededLocked(resolvedService);
-                    if (existingService != null) {
-                        Log.d(TAG, "Binding to existing service");
-                        mState = STATE_XFER;
-                        sendDataToServiceLocked(existingService, data);
-                    } else {
-                        // Waiting for service to be bound
-                        Log.d(TAG, "Waiting for new service.");
-                        // Queue SELECT APDU to be used
-                        mSelectApdu = data;
-                        mState = STATE_W4_SERVICE;
-                    }
+            if (resolvedService == null) {
+                // We have no default, and either one or more services.
+                // Ask the user to confirm.
+                // Just ignore all future APDUs until we resolve to only one
+                mState = STATE_W4_DEACTIVATE;
+                launchResolver((ArrayList<ApduServiceInfo>)resolveInfo.services, null,
+                        resolveInfo.category);
+                return;
+            }
+            StaticSelectResponses staticResponses = mStaticSelectResponses.get(resolvedService);
+            byte[] staticResponse = staticResponses != null ?
+                    staticResponses.get(mLastSelectedAid, 0, mLastSelectedAidLength) : null;
+            if (staticResponse != null) {
+                // Answer right away, while the service is bound if needed. The service
+                // still gets the SELECT, so it is ready for the APDUs that follow,
+                // but its own response to it is dropped. The APDUs that follow are
+                // held until then.
+                NfcService.getInstance().sendData(staticResponse);
+                mSelectAnswered = true;
+                mStaticSelectResponsesSent++;
+            }
+        }
+        switch (mState) {
+        case STATE_W4_SELECT:
+            if (isSelect) {
+                Messenger existingService = bindServiceIfNeededLocked(resolvedService);
+                if (existingService != null) {
+                    Log.d(TAG, "Binding to existing service");
+                    mState = STATE_XFER;
+                    sendDataToServiceLocked(existingService, data);
                 } else {
-                    Log.d(TAG, "Dropping non-select APDU in STATE_W4_SELECT");
-                    NfcService.getInstance().sendData(UNKNOWN_ERROR);
+                    // Waiting for service to be bound
+                    Log.d(TAG, "Waiting for new service.");
+                    waitForServiceLocked(resolvedService, data);
                 }
-                break;
-            case STATE_W4_SERVICE:
-                Log.d(TAG, "Unexpected APDU in STATE_W4_SERVICE");
-                break;
-            case STATE_XFER:
-                if (selectAid != null) {
-                    Messenger existingService = bindServiceIfNeededLocked(resolvedService);
-                    if (existingService != null) {
-                        sendDataToServiceLocked(existingService, data);
-                        mState = STATE_XFER;
-                    } else {
-                        // Waiting for service to be bound
-                        mSelectApdu = data;
-                        mState = STATE_W4_SERVICE;
-                    }
-                } else if (mActiveService != null) {
-                    // Regular APDU data
-                    sendDataToServiceLocked(mActiveService, data);
+            } else {
+                Log.d(TAG, "Dropping non-select APDU in STATE_W4_SELECT");
+                NfcService.getInstance().sendData(UNKNOWN_ERROR);
+            }
+            break;
+        case STATE_XFER:
+            if (isSelect) {
+                Messenger existingService = bindServiceIfNeededLocked(resolvedService);
+                if (existingService != null) {
+                    sendDataToServiceLocked(existingService, data);
+                    mState = STATE_XFER;
                 } else {
-                    // No SELECT AID and no active service.
-                    Log.d(TAG, "Service no longer bound, dropping APDU");
+                    // Waiting for service to be bound
+                    waitForServiceLocked(resolvedService, data);
                 }
-                break;
+            } else if (mActiveService != null) {
+                // Regular APDU data
+                sendDataToServiceLocked(mActiveService, data);
+            } else if (mChannel != 0) {
+                Log.d(TAG, "Dropping non-select APDU on channel " + mChannel +
+                        " without a selected service");
+                NfcService.getInstance().sendData(UNKNOWN_ERROR);
+            } else {
+                // No SELECT AID and no active service.
+                Log.d(TAG, "Service no longer bound, dropping APDU");
             }
+            break;
         }
     }
 
+    /**
+     * Makes the service selected on channel the active one, for the command
+     * received on it.
+     */
+    void setChannelLocked(int channel) {
+        mChannel = channel;
+        mActiveService = mChannelServices[channel];
+        mActiveServiceName = mChannelServiceNames[channel];
+    }
+
+    /**
+     * Handles a MANAGE CHANNEL command received on channel; logical
+     * channels are managed here rather than by the services.
+     */
+    void manageChannelLocked(int channel) {
+        final int p2 = mCommandApdu.getP2();
+        if (mCommandApdu.getP1() == CommandApdu.P1_OPEN_CHANNEL) {
+            int newChannel = p2;
+            if (newChannel == 0) {
+                // Assign the lowest closed channel
+                newChannel = 1;
+                while (newChannel < NUM_LOGICAL_CHANNELS && mChannelOpen[newChannel]) {
+                    newChannel++;
+                }
+            }
+            if (newChannel >= NUM_LOGICAL_CHANNELS || mChannelOpen[newChannel]) {
+                NfcService.getInstance().sendData(LOGICAL_CHANNEL_NOT_SUPPORTED);
+                return;
+            }
+            if (DBG) Log.d(TAG, "Opening logical channel " + newChannel);
+            mChannelOpen[newChannel] = true;
+            if (p2 == 0) {
+                NfcService.getInstance().sendData(new byte[] {
+                        (byte) newChannel, (byte) 0x90, 0x00});
+            } else {
+                NfcService.getInstance().sendData(RESPONSE_OK);
+            }
+        } else if (mCommandApdu.getP1() == CommandApdu.P1_CLOSE_CHANNEL) {
+            int closedChannel = p2 != 0 ? p2 : channel;
+            if (closedChannel == 0) {
+                // The basic channel can't be closed
+                NfcService.getInstance().sendData(FUNCTION_NOT_SUPPORTED);
+                return;
+            }
+            if (closedChannel >= NUM_LOGICAL_CHANNELS || !mChannelOpen[closedChannel]) {
+                NfcService.getInstance().sendData(LOGICAL_CHANNEL_NOT_SUPPORTED);
+                return;
+            }
+            if (DBG) Log.d(TAG, "Closing logical channel " + closedChannel);
+            deselectChannelServiceLocked(closedChannel);
+            mChannelServices[closedChannel] = null;
+            mChannelServiceNames[closedChannel] = null;
+            mChannelOpen[closedChannel] = false;
+            mServicePool.setActiveServicesLocked(mChannelServiceNames);
+            setChannelLocked(channel);
+            NfcService.getInstance().sendData(RESPONSE_OK);
+        } else {
+            NfcService.getInstance().sendData(INCORRECT_P1_P2);
+        }
+    }
+
+    /**
+     * Tells the service selected on channel that it was deselected,
+     * unless it is still selected on another channel.
+     */
+    void deselectChannelServiceLocked(int channel) {
+        Messenger service = mChannelServices[channel];
+        if (service == null) return;
+        for (int i = 0; i < NUM_LOGICAL_CHANNELS; i++) {
+            if (i != channel && service == mChannelServices[i]) return;
+        }
+        sendDeactivateLocked(service, HostApduService.DEACTIVATION_DESELECTED);
+    }
+
+    /**
+     * Tells every selected service that it was deactivated, and
+     * closes all logical channels except the basic one.
+     */
+    void resetChannelsLocked(int reason) {
+        for (int i = 0; i < NUM_LOGICAL_CHANNELS; i++) {
+            Messenger service = mChannelServices[i];
+            if (service == null) continue;
+            boolean notified = false;
+            for (int j = 0; j < i; j++) {
+                if (service == mChannelServices[j]) notified = true;
+            }
+            if (!notified) sendDeactivateLocked(service, reason);
+        }
+        for (int i = 0; i < NUM_LOGICAL_CHANNELS; i++) {
+            mChannelOpen[i] = i == 0;
+            mChannelServices[i] = null;
+            mChannelServiceNames[i] = null;
+        }
+        mServicePool.setActiveServicesLocked(mChannelServiceNames);
+        setChannelLocked(0);
+    }
+
+    void waitForServiceLocked(ComponentName service, byte[] selectApdu) {
+        // Queue SELECT APDU to be used
+        mSelectApdu = selectApdu;
+        mPendingServiceName = service;
+        mBindWaitStartTime = SystemClock.elapsedRealtime();
+        mSessionStats.bindWaits++;
+        mState = STATE_W4_SERVICE;
+    }
+
+    void recordSessionStatsLocked() {
+        if (mSessionStats.bindWaits == 0 && mSessionStats.droppedApdus == 0) {
+            return;
+        }
+        int index = mNumPastSessions % NUM_SESSION_STATS;
+        if (mPastSessionStats[index] == null) {
+            mPastSessionStats[index] = new SessionStats();
+        }
+        mPastSessionStats[index].copyFrom(mSessionStats);
+        mNumPastSessions++;
+    }
+
     public void onHostEmulationDeactivated() {
         Log.d(TAG, "notifyHostEmulationDeactivated");
         synchronized (mLock) {
             if (mState == STATE_IDLE) {
                 Log.e(TAG, "Got deactivation event while in idle state");
             }
-            sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_LINK_LOSS);
-            mActiveService = null;
-            mActiveServiceName = null;
-            unbindServiceIfNeededLocked();
+            resetChannelsLocked(HostApduService.DEACTIVATION_LINK_LOSS);
+            mApduAssembler.reset();
+            mSelectApdu = null;
+            mPendingServiceName = null;
+            mSelectAnswered = false;
+            mDropResponseFrom = null;
+            clearAwaitingResponseLocked();
+            mLastSelectedAidLength = 0;
+            if (!mPendingApdus.isEmpty()) {
+                Log.d(TAG, "Dropping " + mPendingApdus.size() + " queued APDUs");
+                mSessionStats.droppedApdus += mPendingApdus.size();
+                mPendingApdus.clear();
+            }
+            recordSessionStatsLocked();
+            // Services stay bound in the pool for the next tap
+            mServicePool.scheduleIdleEvictionLocked();
             mState = STATE_IDLE;
         }
     }
@@ -297,14 +734,16 @@ public class HostEmulationManager {
     public void onOffHostAidSelected() {
         Log.d(TAG, "notifyOffHostAidSelected");
         synchronized (mLock) {
-            if (mState != STATE_XFER || mActiveService == null) {
-                // Don't bother telling, we're not bound to any service yet
-            } else {
-                sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_DESELECTED);
-            }
-            mActiveService = null;
-            mActiveServiceName = null;
-            unbindServiceIfNeededLocked();
+            // Services we're not bound to yet are not selected on any channel,
+            // so they aren't told
+            resetChannelsLocked(HostApduService.DEACTIVATION_DESELECTED);
+            mApduAssembler.reset();
+            mSelectApdu = null;
+            mPendingServiceName = null;
+            mPendingApdus.clear();
+            clearAwaitingResponseLocked();
+            mSelectAnswered = false;
+            mDropResponseFrom = null;
             mState = STATE_W4_SELECT;
 //TODO: Check the impact on NfcService onSEDeactivated
             //close the TapAgainDialog
@@ -318,51 +757,115 @@ public class HostEmulationManager {
         if (mPaymentServiceBound && mPaymentServiceName.equals(service)) {
             Log.d(TAG, "Service already bound as payment service.");
             return mPaymentService;
-        } else if (mServiceBound && mServiceName.equals(service)) {
-            Log.d(TAG, "Service already bound as regular service.");
-            return mService;
+        } else if (mExpressTransitService != null &&
+                mExpressTransitServiceName.equals(service)) {
+            return mExpressTransitService;
         } else {
-            Log.d(TAG, "Binding to service " + service);
-            unbindServiceIfNeededLocked();
-            Intent aidIntent = new Intent(HostApduService.SERVICE_INTERFACE);
-            aidIntent.setComponent(service);
-            if (mContext.bindServiceAsUser(aidIntent, mConnection,
-                    Context.BIND_AUTO_CREATE, UserHandle.CURRENT)) {
-            } else {
-                Log.e(TAG, "Could not bind service.");
-            }
-            return null;
+            return mServicePool.bindServiceLocked(service);
         }
     }
 
     void sendDataToServiceLocked(Messenger service, byte[] data) {
         if (service != mActiveService) {
-            sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_DESELECTED);
+            deselectChannelServiceLocked(mChannel);
             mActiveService = service;
             if (service.equals(mPaymentService)) {
                 mActiveServiceName = mPaymentServiceName;
+            } else if (service.equals(mExpressTransitService)) {
+                mActiveServiceName = mExpressTransitServiceName;
             } else {
-                mActiveServiceName = mServiceName;
+                mActiveServiceName = mServicePool.findServiceNameLocked(service);
             }
+            mChannelServices[mChannel] = mActiveService;
+            mChannelServiceNames[mChannel] = mActiveServiceName;
+            mServicePool.setActiveServicesLocked(mChannelServiceNames);
+        }
+        final IBinder binder = service.getBinder();
+        // Commands are held while one is outstanding, so this is the only
+        // response the service owes
+        mDropResponseFrom = mSelectAnswered ? binder : null;
+        mSelectAnswered = false;
+        SharedApduChannel sharedChannel = mSharedChannels.get(binder);
+        Message msg = null;
+        if (sharedChannel != null && sharedChannel.mAccepted) {
+            msg = sharedChannel.writeCommand(data);
+        }
+        if (msg != null) {
+            mSharedChannelApdus++;
+        } else {
+            msg = Message.obtain(null, HostApduService.MSG_COMMAND_APDU);
+            Bundle dataBundle = new Bundle();
+            dataBundle.putByteArray("data", data);
+            msg.setData(dataBundle);
+            mMessengerApdus++;
         }
-        Message msg = Message.obtain(null, HostApduService.MSG_COMMAND_APDU);
-        Bundle dataBundle = new Bundle();
-        dataBundle.putByteArray("data", data);
-        msg.setData(dataBundle);
         msg.replyTo = mMessenger;
+        mCommandSentNanos = SystemClock.elapsedRealtimeNanos();
         try {
             mActiveService.send(msg);
+            mAwaitingResponse = true;
+            mResponseHandler.removeCallbacks(mResponseTimeout);
+            mResponseHandler.postDelayed(mResponseTimeout, RESPONSE_TIMEOUT_MS);
         } catch (RemoteException e) {
             Log.e(TAG, "Remote service has died, dropping APDU");
         }
     }
 
-    void sendDeactivateToActiveServiceLocked(int reason) {
-        if (mActiveService == null) return;
+    /**
+     * Offers a new shared memory channel to a newly bound service, if it
+     * opted in to shared memory APDUs.
+     */
+    void offerSharedChannelLocked(ComponentName name, Messenger service) {
+        if (!mSharedChannelServices.contains(name) ||
+                mSharedChannels.containsKey(service.getBinder())) {
+            return;
+        }
+        trimSharedChannelsLocked();
+        SharedApduChannel sharedChannel = SharedApduChannel.create();
+        mSharedChannels.put(service.getBinder(), sharedChannel);
+        if (sharedChannel == null) return;
+        Message msg = sharedChannel.obtainOfferMessage();
+        if (msg == null) return;
+        msg.replyTo = mMessenger;
+        try {
+            service.send(msg);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Remote service has died, not offering shared memory");
+        }
+    }
+
+    /**
+     * Closes the shared memory channels of services that are no longer bound.
+     */
+    void trimSharedChannelsLocked() {
+        Iterator<Map.Entry<IBinder, SharedApduChannel>> it =
+                mSharedChannels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<IBinder, SharedApduChannel> entry = it.next();
+            IBinder binder = entry.getKey();
+            boolean bound = mServicePool.isBoundLocked(binder) ||
+                    (mPaymentService != null && binder.equals(mPaymentService.getBinder())) ||
+                    (mExpressTransitService != null &&
+                            binder.equals(mExpressTransitService.getBinder()));
+            if (!bound) {
+                if (entry.getValue() != null) entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    void closeSharedChannelsLocked() {
+        for (SharedApduChannel sharedChannel : mSharedChannels.values()) {
+            if (sharedChannel != null) sharedChannel.close();
+        }
+        mSharedChannels.clear();
+    }
+
+    void sendDeactivateLocked(Messenger service, int reason) {
         Message msg = Message.obtain(null, HostApduService.MSG_DEACTIVATED);
         msg.arg1 = reason;
         try {
-            mActiveService.send(msg);
+            service.send(msg);
         } catch (RemoteException e) {
             // Don't care
         }
@@ -388,13 +891,28 @@ public class HostEmulationManager {
         }
     }
 
-    void unbindServiceIfNeededLocked() {
-        if (mServiceBound) {
-            Log.d(TAG, "Unbinding from service " + mServiceName);
-            mContext.unbindService(mConnection);
-            mServiceBound = false;
-            mService = null;
-            mServiceName = null;
+    void unbindExpressTransitServiceLocked() {
+        if (mExpressTransitServiceBinding) {
+            mContext.unbindService(mExpressTransitConnection);
+            mExpressTransitServiceBinding = false;
+        }
+        mExpressTransitService = null;
+        mExpressTransitServiceName = null;
+    }
+
+    void bindExpressTransitServiceLocked(int userId, ComponentName service) {
+        unbindExpressTransitServiceLocked();
+
+        mExpressTransitServiceName = service;
+        Intent intent = new Intent(HostApduService.SERVICE_INTERFACE);
+        intent.setComponent(service);
+        // Bound with the priority of a foreground app, so that it isn't
+        // killed while the screen is off
+        if (mContext.bindServiceAsUser(intent, mExpressTransitConnection,
+                Context.BIND_AUTO_CREATE | Context.BIND_IMPORTANT, new UserHandle(userId))) {
+            mExpressTransitServiceBinding = true;
+        } else {
+            Log.e(TAG, "Could not bind (persistent) express transit service.");
         }
     }
 
@@ -418,28 +936,72 @@ public class HostEmulationManager {
         mContext.startActivityAsUser(intent, UserHandle.CURRENT);
     }
 
-    String findSelectAid(byte[] data) {
-        if (data == null || data.length < SELECT_APDU_HDR_LENGTH + MINIMUM_AID_LENGTH) {
-            if (DBG) Log.d(TAG, "Data size too small for SELECT APDU");
-            return null;
+    /**
+     * Parses data into mCommandApdu, and returns whether it is
+     * a SELECT AID command that should be dispatched.
+     */
+    boolean isSelectAidLocked(byte[] data) {
+        if (!mCommandApdu.parse(data)) {
+            if (DBG) Log.d(TAG, "Data is not a valid command APDU");
+            return false;
         }
         // To accept a SELECT AID for dispatch, we require the following:
-        // Class byte must be 0x00: logical channel set to zero, no secure messaging, no chaining
+        // Class byte must be 0x00-0x03: logical channels 0-3, no secure messaging, no chaining
         // Instruction byte must be 0xA4: SELECT instruction
         // P1: must be 0x04: select by application identifier
-        // P2: File control information is only relevant for higher-level application,
-        //     and we only support "first or only occurrence".
-        if (data[0] == 0x00 && data[1] == INSTR_SELECT && data[2] == 0x04) {
-            if (data[3] != 0x00) {
-                Log.d(TAG, "Selecting next, last or previous AID occurrence is not supported");
-            }
-            int aidLength = data[4];
-            if (data.length < SELECT_APDU_HDR_LENGTH + aidLength) {
+        // P2: File control information is only relevant for higher-level application;
+        //     we support "first or only occurrence" and "next occurrence".
+        if (!mCommandApdu.isSelectByAid()) {
+            return false;
+        }
+        if (mCommandApdu.getDataLength() < MINIMUM_AID_LENGTH) {
+            if (DBG) Log.d(TAG, "Data size too small for SELECT APDU");
+            return false;
+        }
+        int occurrence = mCommandApdu.getOccurrence();
+        if (occurrence != CommandApdu.P2_FIRST_OR_ONLY_OCCURRENCE &&
+                occurrence != CommandApdu.P2_NEXT_OCCURRENCE) {
+            Log.d(TAG, "Selecting last or previous AID occurrence is not supported");
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the AID of a SELECT command. If the AID doesn't resolve
+     * as-is, it is treated as a partial AID, and the first registered AID
+     * starting with it is selected. With P2 set to "next occurrence", the
+     * registered AID following the previously selected one is selected.
+     */
+    AidResolveInfo resolveSelectAidLocked(byte[] data, int aidOffset, int aidLength,
+            int occurrence) {
+        if (occurrence == CommandApdu.P2_NEXT_OCCURRENCE) {
+            AidKey nextAid = mAidCache.findAidOccurrence(data, aidOffset, aidLength,
+                    mLastSelectedAid, mLastSelectedAidLength);
+            if (nextAid == null) {
+                if (DBG) Log.d(TAG, "No next occurrence of partial AID");
                 return null;
             }
-            return bytesToString(data, SELECT_APDU_HDR_LENGTH, aidLength);
+            setLastSelectedAidLocked(nextAid.mBytes, 0, nextAid.length());
+            return mAidCache.resolveAid(nextAid.mBytes, 0, nextAid.length());
         }
-        return null;
+        AidResolveInfo resolveInfo = mAidCache.resolveAid(data, aidOffset, aidLength);
+        if (resolveInfo != null && resolveInfo.services.size() > 0) {
+            setLastSelectedAidLocked(data, aidOffset, aidLength);
+            return resolveInfo;
+        }
+        AidKey firstAid = mAidCache.findAidOccurrence(data, aidOffset, aidLength, null, 0);
+        if (firstAid == null) {
+            return resolveInfo;
+        }
+        if (DBG) Log.d(TAG, "Selecting first occurrence of partial AID");
+        setLastSelectedAidLocked(firstAid.mBytes, 0, firstAid.length());
+        return mAidCache.resolveAid(firstAid.mBytes, 0, firstAid.length());
+    }
+
+    void setLastSelectedAidLocked(byte[] aid, int offset, int length) {
+        // AIDs are at most 16 bytes; anything longer can't be registered anyway
+        mLastSelectedAidLength = Math.min(length, MAXIMUM_AID_LENGTH);
+        System.arraycopy(aid, offset, mLastSelectedAid, 0, mLastSelectedAidLength);
     }
 
     private ServiceConnection mPaymentConnection = new ServiceConnection() {
@@ -449,6 +1011,7 @@ public class HostEmulationManager {
                 mPaymentServiceName = name;
                 mPaymentService = new Messenger(service);
                 mPaymentServiceBound = true;
+                offerSharedChannelLocked(name, mPaymentService);
             }
         }
 
@@ -462,19 +1025,13 @@ public class HostEmulationManager {
         }
     };
 
-    private ServiceConnection mConnection = new ServiceConnection() {
+    private ServiceConnection mExpressTransitConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             synchronized (mLock) {
-                mService = new Messenger(service);
-                mServiceBound = true;
-                mServiceName = name;
-                Log.d(TAG, "Service bound");
-                mState = STATE_XFER;
-                // Send pending select APDU
-                if (mSelectApdu != null) {
-                    sendDataToServiceLocked(mService, mSelectApdu);
-                    mSelectApdu = null;
+                if (name.equals(mExpressTransitServiceName)) {
+                    mExpressTransitService = new Messenger(service);
+                    offerSharedChannelLocked(name, mExpressTransitService);
                 }
             }
         }
@@ -482,16 +1039,53 @@ public class HostEmulationManager {
         @Override
         public void onServiceDisconnected(ComponentName name) {
             synchronized (mLock) {
-                Log.d(TAG, "Service unbound");
-                mService = null;
-                mServiceBound = false;
+                // Stays bound; reconnected once restarted
+                mExpressTransitService = null;
             }
         }
     };
 
+    @Override
+    public void onServiceBoundLocked(ComponentName name, Messenger service) {
+        offerSharedChannelLocked(name, service);
+        if (mState == STATE_W4_SERVICE && name.equals(mPendingServiceName)) {
+            mSessionStats.bindWaitTimeMs += SystemClock.elapsedRealtime() - mBindWaitStartTime;
+            mState = STATE_XFER;
+            mApduBoundNanos = SystemClock.elapsedRealtimeNanos();
+            // Send pending select APDU
+            if (mSelectApdu != null) {
+                sendDataToServiceLocked(service, mSelectApdu);
+                mSelectApdu = null;
+            }
+            mPendingServiceName = null;
+            // APDUs that came in while binding are passed on once the
+            // response to the SELECT was sent
+            processPendingApdusLocked();
+        }
+    }
+
     class MessageHandler extends Handler {
+        MessageHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            final long responseNanos = SystemClock.elapsedRealtimeNanos();
+            final long dispatchUs = (SystemClock.uptimeMillis() - msg.getWhen()) * 1000;
+            if (msg.what == SharedApduChannel.MSG_SHARED_MEMORY_ACCEPT) {
+                // Channels are offered on bind, so this needn't come from
+                // the active service
+                synchronized (mLock) {
+                    SharedApduChannel sharedChannel =
+                            mSharedChannels.get(msg.replyTo.getBinder());
+                    if (sharedChannel != null) {
+                        if (DBG) Log.d(TAG, "Service accepted shared memory");
+                        sharedChannel.mAccepted = true;
+                    }
+                }
+                return;
+            }
             synchronized(mLock) {
                 if (mActiveService == null) {
                     Log.d(TAG, "Dropping service response message; service no longer active.");
@@ -501,58 +1095,129 @@ public class HostEmulationManager {
                     return;
                 }
             }
-            if (msg.what == HostApduService.MSG_RESPONSE_APDU) {
-                Bundle dataBundle = msg.getData();
-                if (dataBundle == null) {
-                    return;
-                }
-                byte[] data = dataBundle.getByteArray("data");
-                if (data == null || data.length == 0) {
-                    Log.e(TAG, "Dropping empty R-APDU");
-                    return;
+            if (msg.what == HostApduService.MSG_RESPONSE_APDU ||
+                    msg.what == SharedApduChannel.MSG_SHARED_RESPONSE_APDU) {
+                byte[] data = null;
+                if (msg.what == SharedApduChannel.MSG_SHARED_RESPONSE_APDU) {
+                    synchronized (mLock) {
+                        SharedApduChannel sharedChannel =
+                                mSharedChannels.get(msg.replyTo.getBinder());
+                        if (sharedChannel != null && sharedChannel.mAccepted) {
+                            data = sharedChannel.readResponse(msg.arg1);
+                        }
+                    }
+                } else {
+                    Bundle dataBundle = msg.getData();
+                    if (dataBundle != null) {
+                        data = dataBundle.getByteArray("data");
+                    }
                 }
                 int state;
+                long receivedNanos, resolvedNanos, boundNanos, commandSentNanos;
+                HceLatencyStats serviceStats = null;
                 synchronized(mLock) {
+                    clearAwaitingResponseLocked();
+                    if (msg.replyTo.getBinder().equals(mDropResponseFrom)) {
+                        if (DBG) Log.d(TAG, "Dropping response to an answered command");
+                        mDropResponseFrom = null;
+                        processPendingApdusLocked();
+                        return;
+                    }
+                    if (data == null || data.length == 0) {
+                        Log.e(TAG, "Dropping empty R-APDU");
+                        processPendingApdusLocked();
+                        return;
+                    }
+                    if (mState == STATE_XFER) {
+                        data = mApduAssembler.splitResponse(data);
+                    }
                     state = mState;
+                    receivedNanos = mApduReceivedNanos;
+                    resolvedNanos = mApduResolvedNanos;
+                    boundNanos = mApduBoundNanos;
+                    commandSentNanos = mCommandSentNanos;
+                    if (mActiveServiceName != null) {
+                        serviceStats = mServiceLatencyStats.get(mActiveServiceName);
+                        if (serviceStats == null) {
+                            serviceStats = new HceLatencyStats();
+                            mServiceLatencyStats.put(mActiveServiceName, serviceStats);
+                        }
+                    }
                 }
                 if (state == STATE_XFER) {
-                    Log.d(TAG, "Sending data");
+                    if (DBG) Log.d(TAG, "Sending data");
+                    long sendStartNanos = SystemClock.elapsedRealtimeNanos();
                     NfcService.getInstance().sendData(data);
+                    long sentNanos = SystemClock.elapsedRealtimeNanos();
+                    mLatencyStats.add(receivedNanos, resolvedNanos, boundNanos,
+                            commandSentNanos, responseNanos, dispatchUs, sendStartNanos,
+                            sentNanos);
+                    if (serviceStats != null) {
+                        serviceStats.add(receivedNanos, resolvedNanos, boundNanos,
+                                commandSentNanos, responseNanos, dispatchUs, sendStartNanos,
+                                sentNanos);
+                    }
+                    synchronized (mLock) {
+                        processPendingApdusLocked();
+                    }
                 } else {
                     Log.d(TAG, "Dropping data, wrong state " + Integer.toString(state));
                 }
             } else if (msg.what == HostApduService.MSG_UNHANDLED) {
                 synchronized (mLock) {
-                    AidResolveInfo resolveInfo = mAidCache.resolveAid(mLastSelectedAid);
-                    boolean isPayment = false;
-                    if (resolveInfo.services.size() > 0) {
+                    clearAwaitingResponseLocked();
+                    // No response comes for the command the service didn't handle
+                    mDropResponseFrom = null;
+                    AidResolveInfo resolveInfo = mAidCache.resolveAid(mLastSelectedAid, 0,
+                            mLastSelectedAidLength);
+                    if (resolveInfo != null && resolveInfo.services.size() > 0) {
                         launchResolver((ArrayList<ApduServiceInfo>)resolveInfo.services,
                                 mActiveServiceName, resolveInfo.category);
                     }
+                    processPendingApdusLocked();
                 }
             }
         }
     }
 
-    static String bytesToString(byte[] bytes, int offset, int length) {
-        final char[] hexChars = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-        char[] chars = new char[length * 2];
-        int byteValue;
-        for (int j = 0; j < length; j++) {
-            byteValue = bytes[offset + j] & 0xFF;
-            chars[j * 2] = hexChars[byteValue >>> 4];
-            chars[j * 2 + 1] = hexChars[byteValue & 0x0F];
-        }
-        return new String(chars);
-    }
-
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("Bound services: ");
         if (mPaymentServiceBound) {
             pw.println("    payment: " + mPaymentServiceName);
         }
-        if (mServiceBound) {
-            pw.println("    other: " + mServiceName);
+        synchronized (mLock) {
+            if (mExpressTransitServiceName != null) {
+                pw.println("    express transit: " + mExpressTransitServiceName +
+                        (mExpressTransitService != null ? "" : " (not connected)"));
+            }
+        }
+        mServicePool.dump(fd, pw, args);
+        synchronized (mLock) {
+            pw.println("APDUs queued while binding, last sessions: ");
+            int numSessions = Math.min(mNumPastSessions, NUM_SESSION_STATS);
+            for (int i = 1; i <= numSessions; i++) {
+                int index = (mNumPastSessions - i) % NUM_SESSION_STATS;
+                pw.println("    " + mPastSessionStats[index]);
+            }
+        }
+        synchronized (mLock) {
+            pw.println("APDUs sent through shared memory: " + mSharedChannelApdus +
+                    ", in messages: " + mMessengerApdus);
+            pw.println("Static SELECT responses sent: " + mStaticSelectResponsesSent);
+            for (int i = 0; i < NUM_LOGICAL_CHANNELS; i++) {
+                if (mChannelOpen[i]) {
+                    pw.println("Logical channel " + i + ": " + mChannelServiceNames[i]);
+                }
+            }
+        }
+        pw.println("HCE response latency (on " + mResponseThread.getName() + " thread):");
+        mLatencyStats.dump(pw, "    ");
+        synchronized (mLock) {
+            for (Map.Entry<ComponentName, HceLatencyStats> entry :
+                    mServiceLatencyStats.entrySet()) {
+                pw.println("  " + entry.getKey().flattenToShortString() + ":");
+                entry.getValue().dump(pw, "    ");
+            }
         }
     }
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.res.Configuration;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Messenger;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * HostServicePool keeps the most recently selected HCE services bound,
+ * so that repeat taps against the same service don't pay for a cold
+ * bindService() each time.
+ *
+ * The pool is bounded; when it is full the least recently selected service
+ * is unbound. Services that haven't been selected for a while, and all idle
+ * services under memory pressure, are unbound as well. The service that is
+ * currently active is never evicted.
+ *
+ * All methods ending in Locked must be called with the lock passed in to
+ * the constructor held; the pool shares it with HostEmulationManager.
+ */
+class HostServicePool implements ComponentCallbacks2 {
+    static final String TAG = "HostServicePool";
+    static final boolean DBG = true;
+
+    static final int MAX_BOUND_SERVICES = 4;
+    static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    interface Callback {
+        /** Called with the lock held once a service has been bound. */
+        void onServiceBoundLocked(ComponentName name, Messenger service);
+    }
+
+    final class PooledService implements ServiceConnection {
+        final ComponentName name;
+        Messenger messenger;
+        long lastSelected;
+        int selectCount;
+
+        PooledService(ComponentName name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (mLock) {
+                if (mServices.get(this.name) != this) {
+                    // Evicted while binding
+                    return;
+                }
+                if (DBG) Log.d(TAG, "Service bound: " + name);
+                messenger = new Messenger(service);
+                mCallback.onServiceBoundLocked(name, messenger);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (mLock) {
+                if (DBG) Log.d(TAG, "Service unbound: " + name);
+                messenger = null;
+            }
+        }
+    }
+
+    final Context mContext;
+    final Object mLock;
+    final Callback mCallback;
+    final Handler mHandler = new Handler();
+
+    // Ordered by selection, so iteration starts at the least recently selected
+    // service. Lookups don't change the order; selecting a service moves it
+    // to the end explicitly.
+    final LinkedHashMap<ComponentName, PooledService> mServices =
+            new LinkedHashMap<ComponentName, PooledService>(MAX_BOUND_SERVICES);
+
+    // The services that must not be evicted, as they are handling the current
+    // transaction, one per logical channel at most
+    final HashSet<ComponentName> mActiveServices = new HashSet<ComponentName>();
+
+    int mEvictedLru;
+    int mEvictedIdle;
+    int mEvictedMemory;
+
+    final Runnable mIdleEvictor = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                evictIdleLocked();
+            }
+        }
+    };
+
+    HostServicePool(Context context, Object lock, Callback callback) {
+        mContext = context;
+        mLock = lock;
+        mCallback = callback;
+        mContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Returns the Messenger of a bound service, marking it as recently
+     * selected. If the service isn't bound yet, starts binding it and
+     * returns null; the callback fires once it is bound.
+     */
+    Messenger bindServiceLocked(ComponentName service) {
+        PooledService pooled = mServices.remove(service);
+        if (pooled != null) {
+            mServices.put(service, pooled);
+            pooled.lastSelected = SystemClock.elapsedRealtime();
+            pooled.selectCount++;
+            if (pooled.messenger != null) {
+                if (DBG) Log.d(TAG, "Service already bound: " + service);
+                return pooled.messenger;
+            }
+            // Still binding, or the service process died and will be reconnected
+            return null;
+        }
+        while (mServices.size() >= MAX_BOUND_SERVICES) {
+            if (!evictLeastRecentlySelectedLocked()) break;
+        }
+        if (DBG) Log.d(TAG, "Binding to service " + service);
+        pooled = new PooledService(service);
+        pooled.lastSelected = SystemClock.elapsedRealtime();
+        pooled.selectCount = 1;
+        Intent aidIntent = new Intent(HostApduService.SERVICE_INTERFACE);
+        aidIntent.setComponent(service);
+        if (mContext.bindServiceAsUser(aidIntent, pooled,
+                Context.BIND_AUTO_CREATE, UserHandle.CURRENT)) {
+            mServices.put(service, pooled);
+            scheduleIdleEvictionLocked();
+        } else {
+            Log.e(TAG, "Could not bind service.");
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the pooled service behind a Messenger, or null.
+     */
+    ComponentName findServiceNameLocked(Messenger messenger) {
+        for (PooledService pooled : mServices.values()) {
+            if (messenger.equals(pooled.messenger)) {
+                return pooled.name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether binder belongs to a bound pooled service.
+     */
+    boolean isBoundLocked(IBinder binder) {
+        for (PooledService pooled : mServices.values()) {
+            if (pooled.messenger != null && binder.equals(pooled.messenger.getBinder())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isBoundLocked(ComponentName service) {
+        PooledService pooled = mServices.get(service);
+        return pooled != null && pooled.messenger != null;
+    }
+
+    /**
+     * Sets the active services; null entries are ignored.
+     */
+    void setActiveServicesLocked(ComponentName[] services) {
+        mActiveServices.clear();
+        for (ComponentName service : services) {
+            if (service != null) mActiveServices.add(service);
+        }
+    }
+
+    boolean evictLeastRecentlySelectedLocked() {
+        for (PooledService pooled : mServices.values()) {
+            if (!mActiveServices.contains(pooled.name)) {
+                if (DBG) Log.d(TAG, "Pool full, unbinding " + pooled.name);
+                unbindLocked(pooled);
+                mEvictedLru++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void scheduleIdleEvictionLocked() {
+        mHandler.removeCallbacks(mIdleEvictor);
+        if (!mServices.isEmpty()) {
+            mHandler.postDelayed(mIdleEvictor, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    void evictIdleLocked() {
+        final long now = SystemClock.elapsedRealtime();
+        ArrayList<PooledService> idle = new ArrayList<PooledService>();
+        for (PooledService pooled : mServices.values()) {
+            if (now - pooled.lastSelected >= IDLE_TIMEOUT_MS &&
+                    !mActiveServices.contains(pooled.name)) {
+                idle.add(pooled);
+            }
+        }
+        for (PooledService pooled : idle) {
+            if (DBG) Log.d(TAG, "Unbinding idle service " + pooled.name);
+            unbindLocked(pooled);
+            mEvictedIdle++;
+        }
+        scheduleIdleEvictionLocked();
+    }
+
+    /**
+     * Unbinds all services except the active ones.
+     */
+    void evictAllLocked() {
+        Iterator<PooledService> it = mServices.values().iterator();
+        while (it.hasNext()) {
+            PooledService pooled = it.next();
+            if (!mActiveServices.contains(pooled.name)) {
+                mContext.unbindService(pooled);
+                it.remove();
+                mEvictedMemory++;
+            }
+        }
+        scheduleIdleEvictionLocked();
+    }
+
+    /**
+     * Unbinds all services, including the active one; for example
+     * because the user was switched.
+     */
+    void unbindAllLocked() {
+        for (PooledService pooled : mServices.values()) {
+            mContext.unbindService(pooled);
+        }
+        mServices.clear();
+        mActiveServices.clear();
+        mHandler.removeCallbacks(mIdleEvictor);
+    }
+
+    void unbindLocked(PooledService pooled) {
+        mContext.unbindService(pooled);
+        mServices.remove(pooled.name);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (mLock) {
+                if (DBG) Log.d(TAG, "Memory pressure (" + level + "), unbinding idle services");
+                evictAllLocked();
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            pw.println("    pool (" + mServices.size() + "/" + MAX_BOUND_SERVICES + "):");
+            for (PooledService pooled : mServices.values()) {
+                pw.println("        " + pooled.name + (pooled.messenger != null ? "" : " (binding)") +
+                        ", selected " + pooled.selectCount + " times, last " +
+                        ((now - pooled.lastSelected) / 1000) + "s ago");
+            }
+            pw.println("    evicted: " + mEvictedLru + " lru, " + mEvictedIdle + " idle, " +
+                    mEvictedMemory + " memory pressure");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts latencies in fixed buckets, for dumpsys.
+ *
+ * Thread-safe.
+ */
+final class LatencyHistogram {
+    // Upper bounds of the buckets in microseconds; the last bucket is open
+    static final long[] BUCKET_BOUNDS_US = {
+        500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000
+    };
+
+    final String mName;
+    final int[] mCounts = new int[BUCKET_BOUNDS_US.length + 1];
+    int mCount;
+    long mTotalUs;
+    long mMaxUs;
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    synchronized void add(long latencyUs) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_US.length && latencyUs >= BUCKET_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mTotalUs += latencyUs;
+        mMaxUs = Math.max(mMaxUs, latencyUs);
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        if (mCount == 0) {
+            pw.println(prefix + mName + ": no samples");
+            return;
+        }
+        pw.println(prefix + mName + ": " + mCount + " samples, avg " +
+                formatUs(mTotalUs / mCount) + ", max " + formatUs(mMaxUs));
+        StringBuilder sb = new StringBuilder(prefix + "    ");
+        for (int i = 0; i < mCounts.length; i++) {
+            if (i < BUCKET_BOUNDS_US.length) {
+                sb.append("<" + formatUs(BUCKET_BOUNDS_US[i]));
+            } else {
+                sb.append(">=" + formatUs(BUCKET_BOUNDS_US[BUCKET_BOUNDS_US.length - 1]));
+            }
+            sb.append(": " + mCounts[i]);
+            if (i < mCounts.length - 1) sb.append(", ");
+        }
+        pw.println(sb.toString());
+    }
+
+    static String formatUs(long us) {
+        if (us < 1000) {
+            return us + "us";
+        }
+        return (us / 1000) + "." + ((us % 1000) / 100) + "ms";
+    }
+}
@@ -57,6 +57,9 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
             Settings.Secure.NFC_PAYMENT_DEFAULT_COMPONENT);
     static final Uri paymentForegroundUri = Settings.Secure.getUriFor(
             Settings.Secure.NFC_PAYMENT_FOREGROUND);
+    // The service the user designated for express transit, if any
+    static final String EXPRESS_TRANSIT_COMPONENT = "nfc_express_transit_component";
+    static final Uri expressTransitUri = Settings.Secure.getUriFor(EXPRESS_TRANSIT_COMPONENT);
 
     final SettingsObserver mSettingsObserver;
     final Context mContext;
@@ -84,9 +87,13 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
 
     ComponentName mForegroundCurrent; // The currently computed foreground component
 
+    ComponentName mExpressTransitSetting; // The component designated in settings
+    ComponentName mExpressTransitService; // The component served with the screen off
+
     public interface Callback {
         void onPreferredPaymentServiceChanged(ComponentName service);
         void onPreferredForegroundServiceChanged(ComponentName service);
+        void onExpressTransitServiceChanged(ComponentName service);
     }
 
     public PreferredServices(Context context, RegisteredServicesCache serviceCache,
@@ -104,6 +111,10 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
                 paymentForegroundUri,
                 true, mSettingsObserver, UserHandle.USER_ALL);
 
+        mContext.getContentResolver().registerContentObserver(
+                expressTransitUri,
+                true, mSettingsObserver, UserHandle.USER_ALL);
+
         // Load current settings defaults for payments
         loadDefaultsFromSettings(ActivityManager.getCurrentUser());
     }
@@ -138,7 +149,11 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
                     Settings.Secure.NFC_PAYMENT_FOREGROUND) != 0;
         } catch (SettingNotFoundException e) {
         }
+        name = Settings.Secure.getStringForUser(mContext.getContentResolver(),
+                EXPRESS_TRANSIT_COMPONENT, userId);
+        ComponentName newTransit = name != null ? ComponentName.unflattenFromString(name) : null;
         synchronized (mLock) {
+            mExpressTransitSetting = newTransit;
             paymentPreferForegroundChanged = (preferForeground != mPaymentDefaults.preferForeground);
             mPaymentDefaults.preferForeground = preferForeground;
 
@@ -160,6 +175,34 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
         if (paymentPreferForegroundChanged) {
             computePreferredForegroundService();
         }
+        computeExpressTransitService(userId);
+    }
+
+    void computeExpressTransitService(int userId) {
+        ComponentName transitService = null;
+        boolean changed = false;
+        synchronized (mLock) {
+            if (mExpressTransitSetting != null) {
+                // Only an installed HCE service of this user is bound and
+                // served with the screen off
+                ApduServiceInfo serviceInfo = mServiceCache.getService(userId,
+                        mExpressTransitSetting);
+                if (serviceInfo != null && serviceInfo.isOnHost()) {
+                    transitService = mExpressTransitSetting;
+                } else {
+                    Log.e(TAG, "Express transit service " + mExpressTransitSetting +
+                            " is not an installed HCE service.");
+                }
+            }
+            if (transitService != null ? !transitService.equals(mExpressTransitService) :
+                    mExpressTransitService != null) {
+                mExpressTransitService = transitService;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mCallback.onExpressTransitServiceChanged(transitService);
+        }
     }
 
     void computePreferredForegroundService() {
@@ -217,6 +260,8 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
         if (changed) {
             computePreferredForegroundService();
         }
+        // The express transit service may have been installed or removed
+        computeExpressTransitService(ActivityManager.getCurrentUser());
     }
 
     // Verifies whether a service is allowed to register as preferred
@@ -363,6 +408,7 @@ public class PreferredServices implements com.android.nfc.ForegroundUtils.Callba
                 "): " + mForegroundRequested);
         pw.println("        Default in payment settings: " + mPaymentDefaults.settingsDefault);
         pw.println("        Payment settings allows override: " + mPaymentDefaults.preferForeground);
+        pw.println("    *** Express transit service: " + mExpressTransitService);
         pw.println("");
     }
 }
@@ -56,7 +56,14 @@ public class RegisteredAidCache {
     // has already accounted for defaults, and hence its return value
     // is authoritative for the current set of services and defaults.
     // It is only valid for the current user.
-    final TreeMap<String, AidResolveInfo> mAidCache = new TreeMap<String, AidResolveInfo>();
+    // It is rebuilt on the side and then replaced as a whole; never modify it in place.
+    volatile TreeMap<String, AidResolveInfo> mAidCache = new TreeMap<String, AidResolveInfo>();
+
+    // mAidTrie is compiled from mAidCache every time the cache is regenerated,
+    // and is what SELECT commands are actually resolved against. It is an
+    // immutable snapshot that is read without holding mLock, so a SELECT never
+    // waits for a rebuild that is in progress.
+    volatile AidTrie mAidTrie;
 
     // The power state for Host AIDs
     int mHostAIDPowerState;
@@ -107,7 +114,7 @@ public class RegisteredAidCache {
 
     // Represents a list of services, an optional default and a category that
     // an AID was resolved to.
-    final class AidResolveInfo {
+    static final class AidResolveInfo {
         List<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
         ApduServiceInfo defaultService = null;
         String category = null;
@@ -133,6 +140,7 @@ public class RegisteredAidCache {
 
     ComponentName mPreferredPaymentService;
     ComponentName mPreferredForegroundService;
+    ComponentName mExpressTransitService; // Served on the host with the screen off
 
     boolean mNfcEnabled = false;
     boolean mSupportsPrefixes = false;
@@ -149,58 +157,43 @@ public class RegisteredAidCache {
         //TODO:
         //AOSP needs Power Switch On Only for Host AIDs
         mHostAIDPowerState = 0x40 | POWER_STATE_SWITCH_ON;
+        mAidTrie = new AidTrie(mAidCache, mSupportsPrefixes);
     }
 
     public AidResolveInfo resolveAid(String aid) {
-        synchronized (mLock) {
-            if (DBG) Log.d(TAG, "resolveAid: resolving AID " + aid);
-            if (aid.length() < 10) {
-                Log.e(TAG, "AID selected with fewer than 5 bytes.");
-                return EMPTY_RESOLVE_INFO;
-            }
-            AidResolveInfo resolveInfo = new AidResolveInfo();
-            if (mSupportsPrefixes) {
-                // Our AID cache may contain prefixes which also match this AID,
-                // so we must find all potential prefixes and merge the ResolveInfo
-                // of those prefixes plus any exact match in a single result.
-                String shortestAidMatch = aid.substring(0, 10); // Minimum AID length is 5 bytes
-                String longestAidMatch = aid + "*"; // Longest potential matching AID
-
-                if (DBG) Log.d(TAG, "Finding AID registrations in range [" + shortestAidMatch +
-                        " - " + longestAidMatch + "]");
-                NavigableMap<String, AidResolveInfo> matchingAids =
-                        mAidCache.subMap(shortestAidMatch, true, longestAidMatch, true);
-
-                resolveInfo.category = CardEmulation.CATEGORY_OTHER;
-                for (Map.Entry<String, AidResolveInfo> entry : matchingAids.entrySet()) {
-                    boolean isPrefix = isPrefix(entry.getKey());
-                    String entryAid = isPrefix ? entry.getKey().substring(0,
-                            entry.getKey().length() - 1) : entry.getKey(); // Cut off '*' if prefix
-                    if (entryAid.equalsIgnoreCase(aid) || (isPrefix && aid.startsWith(entryAid))) {
-                        if (DBG) Log.d(TAG, "resolveAid: AID " + entryAid + " matches.");
-                        AidResolveInfo entryResolveInfo = entry.getValue();
-                        if (entryResolveInfo.defaultService != null) {
-                            if (resolveInfo.defaultService != null) {
-                                // This shouldn't happen; for every prefix we have only one
-                                // default service.
-                                Log.e(TAG, "Different defaults for conflicting AIDs!");
-                            }
-                            resolveInfo.defaultService = entryResolveInfo.defaultService;
-                            resolveInfo.category = entryResolveInfo.category;
-                        }
-                        for (ApduServiceInfo serviceInfo : entryResolveInfo.services) {
-                            if (!resolveInfo.services.contains(serviceInfo)) {
-                                resolveInfo.services.add(serviceInfo);
-                            }
-                        }
-                    }
-                }
-            } else {
-                resolveInfo = mAidCache.get(aid);
-            }
-            if (DBG) Log.d(TAG, "Resolved to: " + resolveInfo);
-            return resolveInfo;
+        if (DBG) Log.d(TAG, "resolveAid: resolving AID " + aid);
+        if (aid.length() < 10) {
+            Log.e(TAG, "AID selected with fewer than 5 bytes.");
+            return EMPTY_RESOLVE_INFO;
+        }
+        byte[] aidBytes = AidTrie.aidToBytes(aid);
+        if (aidBytes == null) {
+            Log.e(TAG, "AID " + aid + " is not valid.");
+            return EMPTY_RESOLVE_INFO;
         }
+        return resolveAid(aidBytes, 0, aidBytes.length);
+    }
+
+    /**
+     * Resolves the AID in aid[offset..offset+length) without allocating;
+     * used on the SELECT path. The returned object is shared and must
+     * not be modified.
+     */
+    public AidResolveInfo resolveAid(byte[] aid, int offset, int length) {
+        if (length < AidTrie.MINIMUM_AID_LENGTH) {
+            Log.e(TAG, "AID selected with fewer than 5 bytes.");
+            return EMPTY_RESOLVE_INFO;
+        }
+        return mAidTrie.resolve(aid, offset, length);
+    }
+
+    /**
+     * Finds the registered AID to select for a SELECT by partial AID;
+     * see {@link AidTrie#findOccurrence}.
+     */
+    AidKey findAidOccurrence(byte[] partial, int offset, int length, byte[] after,
+            int afterLength) {
+        return mAidTrie.findOccurrence(partial, offset, length, after, afterLength);
     }
 
     public boolean supportsAidPrefixRegistration() {
@@ -440,7 +433,7 @@ public class RegisteredAidCache {
     }
 
     void generateAidCacheLocked() {
-        mAidCache.clear();
+        final TreeMap<String, AidResolveInfo> aidCache = new TreeMap<String, AidResolveInfo>();
         // Get all exact and prefix AIDs in an ordered list
         PriorityQueue<String> aidsToResolve = new PriorityQueue<String>(mAidServices.keySet());
 
@@ -472,7 +465,7 @@ public class RegisteredAidCache {
                 // Resolve conflicts
                 AidResolveInfo resolveInfo = resolvePrefixAidConflictLocked(prefixServices,
                         prefixConflicts.services);
-                mAidCache.put(aidToResolve, resolveInfo);
+                aidCache.put(aidToResolve, resolveInfo);
                 resolvedAids.add(aidToResolve);
                 if (resolveInfo.defaultService != null) {
                     // This prefix is the default; therefore, AIDs of all conflicting children
@@ -496,7 +489,7 @@ public class RegisteredAidCache {
                             // Since these are all "children" of the prefix, they don't need
                             // to be routed, since the prefix will already get routed to the host
                             childResolveInfo.mustRoute = false;
-                            mAidCache.put(entry.getKey(),childResolveInfo);
+                            aidCache.put(entry.getKey(),childResolveInfo);
                             resolvedAids.add(entry.getKey());
                             foundChildService |= !childResolveInfo.services.isEmpty();
                         }
@@ -517,7 +510,7 @@ public class RegisteredAidCache {
                 if (DBG) Log.d(TAG, "Exact AID, resolving.");
                 final ArrayList<ServiceAidInfo> conflictingServiceInfos =
                         new ArrayList<ServiceAidInfo>(mAidServices.get(aidToResolve));
-                mAidCache.put(aidToResolve, resolveAidConflictLocked(conflictingServiceInfos, true));
+                aidCache.put(aidToResolve, resolveAidConflictLocked(conflictingServiceInfos, true));
                 resolvedAids.add(aidToResolve);
             }
 
@@ -527,6 +520,12 @@ public class RegisteredAidCache {
             resolvedAids.clear();
         }
 
+        // Publish the new snapshot; lookups switch over atomically
+        final AidTrie aidTrie = new AidTrie(aidCache, mSupportsPrefixes);
+        if (DBG) Log.d(TAG, "Compiled AID trie with " + aidTrie.size() + " entries.");
+        mAidCache = aidCache;
+        mAidTrie = aidTrie;
+
         updateRoutingLocked();
     }
 
@@ -571,6 +570,11 @@ public class RegisteredAidCache {
                 {
                     powerstate |= 0x40;
                 }
+                /*Express transit AIDs must reach the host with the screen off too*/
+                if (isOnHost && resolveInfo.defaultService.getComponent().equals(
+                        mExpressTransitService)) {
+                    powerstate |= (POWER_STATE_SWITCH_ON | 0x80);
+                }
 
                 if (!isOnHost) {
                     String plainAid = "";
@@ -648,6 +652,14 @@ public class RegisteredAidCache {
         }
     }
 
+    public void onExpressTransitServiceChanged(ComponentName service) {
+        if (DBG) Log.d(TAG, "Express transit service changed.");
+        synchronized (mLock) {
+            mExpressTransitService = service;
+            generateAidCacheLocked();
+        }
+    }
+
     public void onRoutingTableChanged() {
         if (DBG) Log.d(TAG, "onRoutingTableChanged");
         synchronized (mLock) {
@@ -689,10 +701,13 @@ public class RegisteredAidCache {
 
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("    AID cache entries: ");
-        for (Map.Entry<String, AidResolveInfo> entry : mAidCache.entrySet()) {
+        final TreeMap<String, AidResolveInfo> aidCache = mAidCache;
+        for (Map.Entry<String, AidResolveInfo> entry : aidCache.entrySet()) {
             pw.println(dumpEntry(entry));
         }
+        pw.println("    AID trie entries: " + mAidTrie.size());
         pw.println("    Service preferred by foreground app: " + mPreferredForegroundService);
+        pw.println("    Express transit service: " + mExpressTransitService);
         pw.println("    Preferred payment service: " + mPreferredPaymentService);
         pw.println("");
         mRoutingManager.dump(fd, pw, args);
@@ -16,9 +16,7 @@
 
 package com.android.nfc.cardemulation;
 
-import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
@@ -26,6 +24,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
@@ -35,24 +34,23 @@ import android.nfc.cardemulation.ApduServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.HostApduService;
 import android.nfc.cardemulation.OffHostApduService;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
-import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
-import android.util.Xml;
 
-import com.android.internal.util.FastXmlSerializer;
+import com.android.nfc.R;
 import com.google.android.collect.Maps;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -66,7 +64,6 @@ import java.util.concurrent.atomic.AtomicReference;
  * it's less suited.
  */
 public class RegisteredServicesCache {
-    static final String XML_INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
     static final String TAG = "RegisteredServicesCache";
     static final boolean DEBUG = true;
 
@@ -79,7 +76,39 @@ public class RegisteredServicesCache {
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
     final Callback mCallback;
-    final AtomicFile mDynamicAidsFile;
+    final DynamicAidStore mDynamicAidStore;
+    final ServiceInfoCache mServiceInfoCache;
+    // Time it took to load the installed services, including parsing
+    // the meta-data of services that weren't cached
+    long mLastServicesLoadMs;
+    long mInitialServicesLoadMs;
+
+    // Package changes come in bursts, for example when apps are updated in bulk.
+    // Cache invalidations are postponed until no new change came in for
+    // mUpdateDelayMs, but at most for mMaxUpdateDelayMs.
+    final Handler mHandler = new Handler();
+    final int mUpdateDelayMs;
+    final int mMaxUpdateDelayMs;
+    final HashSet<Integer> mPendingInvalidations = new HashSet<Integer>();
+    long mFirstPendingInvalidation;
+    int mInvalidationsRequested;
+    int mInvalidationsCoalesced;
+    int mInvalidationsRun;
+
+    final Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Integer> userIds;
+            synchronized (mLock) {
+                userIds = new ArrayList<Integer>(mPendingInvalidations);
+                mPendingInvalidations.clear();
+                mInvalidationsRun += userIds.size();
+            }
+            for (int userId : userIds) {
+                invalidateCache(userId);
+            }
+        }
+    };
 
     public interface Callback {
         void onServicesUpdated(int userId, final List<ApduServiceInfo> services);
@@ -102,6 +131,10 @@ public class RegisteredServicesCache {
                 Maps.newHashMap(); // Re-built at run-time
         final HashMap<ComponentName, DynamicAids> dynamicAids =
                 Maps.newHashMap(); // In memory cache of dynamic AID store
+        final HashMap<ComponentName, StaticSelectResponses> staticSelectResponses =
+                Maps.newHashMap(); // Re-built at run-time
+        final HashSet<ComponentName> sharedChannelServices =
+                new HashSet<ComponentName>(); // Re-built at run-time
     };
 
     private UserServices findOrCreateUserLocked(int userId) {
@@ -130,7 +163,7 @@ public class RegisteredServicesCache {
                     if (!replaced) {
                         int currentUser = ActivityManager.getCurrentUser();
                         if (currentUser == UserHandle.getUserId(uid)) {
-                            invalidateCache(UserHandle.getUserId(uid));
+                            scheduleInvalidateCache(UserHandle.getUserId(uid));
                         } else {
                             // Cache will automatically be updated on user switch
                         }
@@ -159,7 +192,13 @@ public class RegisteredServicesCache {
         mContext.registerReceiverAsUser(mReceiver.get(), UserHandle.ALL, sdFilter, null, null);
 
         File dataDir = mContext.getFilesDir();
-        mDynamicAidsFile = new AtomicFile(new File(dataDir, "dynamic_aids.xml"));
+        mDynamicAidStore = new DynamicAidStore(dataDir);
+        mServiceInfoCache = new ServiceInfoCache(dataDir);
+
+        mUpdateDelayMs = mContext.getResources().getInteger(
+                R.integer.service_cache_update_delay_ms);
+        mMaxUpdateDelayMs = mContext.getResources().getInteger(
+                R.integer.service_cache_max_update_delay_ms);
     }
 
     void initialize() {
@@ -167,6 +206,9 @@ public class RegisteredServicesCache {
             readDynamicAidsLocked();
         }
         invalidateCache(ActivityManager.getCurrentUser());
+        synchronized (mLock) {
+            mInitialServicesLoadMs = mLastServicesLoadMs;
+        }
     }
 
     void dump(ArrayList<ApduServiceInfo> services) {
@@ -202,6 +244,27 @@ public class RegisteredServicesCache {
         return services;
     }
 
+    /**
+     * Returns the static SELECT responses declared by the services of userId.
+     */
+    public HashMap<ComponentName, StaticSelectResponses> getStaticSelectResponses(int userId) {
+        synchronized (mLock) {
+            UserServices userServices = findOrCreateUserLocked(userId);
+            return new HashMap<ComponentName, StaticSelectResponses>(
+                    userServices.staticSelectResponses);
+        }
+    }
+
+    /**
+     * Returns the services of userId that opted in to shared memory APDUs.
+     */
+    public HashSet<ComponentName> getSharedChannelServices(int userId) {
+        synchronized (mLock) {
+            UserServices userServices = findOrCreateUserLocked(userId);
+            return new HashSet<ComponentName>(userServices.sharedChannelServices);
+        }
+    }
+
     public List<ApduServiceInfo> getServicesForCategory(int userId, String category) {
         final ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
         synchronized (mLock) {
@@ -213,7 +276,9 @@ public class RegisteredServicesCache {
         return services;
     }
 
-    ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
+    ArrayList<ApduServiceInfo> getInstalledServices(int userId,
+            HashMap<ComponentName, StaticSelectResponses> staticSelectResponses,
+            HashSet<ComponentName> sharedChannelServices) {
         PackageManager pm;
         try {
             pm = mContext.createPackageContextAsUser("android", 0,
@@ -223,7 +288,12 @@ public class RegisteredServicesCache {
             return null;
         }
 
+        final long start = SystemClock.elapsedRealtime();
+        // Descriptions are loaded in the current locale
+        final String locale = mContext.getResources().getConfiguration().locale.toString();
         ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
+        HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
+        HashSet<ComponentName> components = new HashSet<ComponentName>();
 
         List<ResolveInfo> resolvedServices = pm.queryIntentServicesAsUser(
                 new Intent(HostApduService.SERVICE_INTERFACE),
@@ -254,10 +324,32 @@ public class RegisteredServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
-                if (service != null) {
-                    validServices.add(service);
+                components.add(componentName);
+                PackageInfo packageInfo = packageInfos.get(si.packageName);
+                if (packageInfo == null) {
+                    packageInfo = pm.getPackageInfo(si.packageName, 0);
+                    packageInfos.put(si.packageName, packageInfo);
+                }
+                // Only parse the meta-data if the package changed
+                ApduServiceInfo service = mServiceInfoCache.get(userId, componentName,
+                        packageInfo, locale);
+                if (service == null || service.isOnHost() != onHost) {
+                    service = new ApduServiceInfo(pm, resolvedService, onHost);
+                    mServiceInfoCache.put(userId, service, packageInfo, locale);
                 }
+                validServices.add(service);
+                if (onHost && si.metaData != null) {
+                    StaticSelectResponses responses = StaticSelectResponses.parse(
+                            si.metaData.getString(StaticSelectResponses.META_DATA_KEY));
+                    if (responses != null) {
+                        staticSelectResponses.put(componentName, responses);
+                    }
+                    if (si.metaData.getBoolean(SharedApduChannel.META_DATA_KEY)) {
+                        sharedChannelServices.add(componentName);
+                    }
+                }
+            } catch (NameNotFoundException e) {
+                Log.w(TAG, "Package of " + resolvedService.toString() + " not found", e);
             } catch (XmlPullParserException e) {
                 Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
             } catch (IOException e) {
@@ -265,16 +357,53 @@ public class RegisteredServicesCache {
             }
         }
 
+        mServiceInfoCache.retainAll(userId, components);
+        mServiceInfoCache.writeIfDirty();
+        final long loadMs = SystemClock.elapsedRealtime() - start;
+        synchronized (mLock) {
+            mLastServicesLoadMs = loadMs;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + validServices.size() + " services in " + loadMs +
+                " ms");
         return validServices;
     }
 
+    /**
+     * Invalidates the cache for userId once the current burst of package
+     * changes is over, so that services and routing are updated only once.
+     */
+    void scheduleInvalidateCache(int userId) {
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+            mInvalidationsRequested++;
+            if (mPendingInvalidations.isEmpty()) {
+                mFirstPendingInvalidation = now;
+            } else {
+                mInvalidationsCoalesced++;
+            }
+            mPendingInvalidations.add(userId);
+            long runAt = Math.min(now + mUpdateDelayMs,
+                    mFirstPendingInvalidation + mMaxUpdateDelayMs);
+            mHandler.removeCallbacks(mInvalidateRunnable);
+            mHandler.postAtTime(mInvalidateRunnable, runAt);
+        }
+    }
+
     public void invalidateCache(int userId) {
-        final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId);
+        final HashMap<ComponentName, StaticSelectResponses> staticSelectResponses =
+                new HashMap<ComponentName, StaticSelectResponses>();
+        final HashSet<ComponentName> sharedChannelServices = new HashSet<ComponentName>();
+        final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId,
+                staticSelectResponses, sharedChannelServices);
         if (validServices == null) {
             return;
         }
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
+            userServices.staticSelectResponses.clear();
+            userServices.staticSelectResponses.putAll(staticSelectResponses);
+            userServices.sharedChannelServices.clear();
+            userServices.sharedChannelServices.addAll(sharedChannelServices);
 
             // Find removed services
             Iterator<Map.Entry<ComponentName, ApduServiceInfo>> it =
@@ -314,10 +443,10 @@ public class RegisteredServicesCache {
             if (toBeRemoved.size() > 0) {
                 for (ComponentName component : toBeRemoved) {
                     Log.d(TAG, "Removing dynamic AIDs registered by " + component);
-                    userServices.dynamicAids.remove(component);
+                    DynamicAids dynAids = userServices.dynamicAids.remove(component);
+                    // Persist to filesystem
+                    mDynamicAidStore.removeService(dynAids.uid, component);
                 }
-                // Persist to filesystem
-                writeDynamicAidsLocked();
             }
         }
 
@@ -326,118 +455,15 @@ public class RegisteredServicesCache {
     }
 
     private void readDynamicAidsLocked() {
-        FileInputStream fis = null;
-        try {
-            if (!mDynamicAidsFile.getBaseFile().exists()) {
-                Log.d(TAG, "Dynamic AIDs file does not exist.");
-                return;
-            }
-            fis = mDynamicAidsFile.openRead();
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, null);
-            int eventType = parser.getEventType();
-            while (eventType != XmlPullParser.START_TAG &&
-                    eventType != XmlPullParser.END_DOCUMENT) {
-                eventType = parser.next();
-            }
-            String tagName = parser.getName();
-            if ("services".equals(tagName)) {
-                boolean inService = false;
-                ComponentName currentComponent = null;
-                int currentUid = -1;
-                ArrayList<AidGroup> currentGroups = new ArrayList<AidGroup>();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    tagName = parser.getName();
-                    if (eventType == XmlPullParser.START_TAG) {
-                        if ("service".equals(tagName) && parser.getDepth() == 2) {
-                            String compString = parser.getAttributeValue(null, "component");
-                            String uidString = parser.getAttributeValue(null, "uid");
-                            if (compString == null || uidString == null) {
-                                Log.e(TAG, "Invalid service attributes");
-                            } else {
-                                try {
-                                    currentUid = Integer.parseInt(uidString);
-                                    currentComponent = ComponentName.unflattenFromString(compString);
-                                    inService = true;
-                                } catch (NumberFormatException e) {
-                                    Log.e(TAG, "Could not parse service uid");
-                                }
-                            }
-                        }
-                        if ("aid-group".equals(tagName) && parser.getDepth() == 3 && inService) {
-                            AidGroup group = AidGroup.createFromXml(parser);
-                            if (group != null) {
-                                currentGroups.add(group);
-                            } else {
-                                Log.e(TAG, "Could not parse AID group.");
-                            }
-                        }
-                    } else if (eventType == XmlPullParser.END_TAG) {
-                        if ("service".equals(tagName)) {
-                            // See if we have a valid service
-                            if (currentComponent != null && currentUid >= 0 &&
-                                    currentGroups.size() > 0) {
-                                final int userId = UserHandle.getUserId(currentUid);
-                                DynamicAids dynAids = new DynamicAids(currentUid);
-                                for (AidGroup group : currentGroups) {
-                                    dynAids.aidGroups.put(group.getCategory(), group);
-                                }
-                                UserServices services = findOrCreateUserLocked(userId);
-                                services.dynamicAids.put(currentComponent, dynAids);
-                            }
-                            currentUid = -1;
-                            currentComponent = null;
-                            currentGroups.clear();
-                            inService = false;
-                        }
-                    }
-                    eventType = parser.next();
-                };
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Could not parse dynamic AIDs file, trashing.");
-            mDynamicAidsFile.delete();
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                }
-            }
-        }
-    }
-
-    private boolean writeDynamicAidsLocked() {
-        FileOutputStream fos = null;
-        try {
-            fos = mDynamicAidsFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, "utf-8");
-            out.startDocument(null, true);
-            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
-            out.startTag(null, "services");
-            for (int i = 0; i < mUserServices.size(); i++) {
-                final UserServices user = mUserServices.valueAt(i);
-                for (Map.Entry<ComponentName, DynamicAids> service : user.dynamicAids.entrySet()) {
-                    out.startTag(null, "service");
-                    out.attribute(null, "component", service.getKey().flattenToString());
-                    out.attribute(null, "uid", Integer.toString(service.getValue().uid));
-                    for (AidGroup group : service.getValue().aidGroups.values()) {
-                        group.writeAsXml(out);
-                    }
-                    out.endTag(null, "service");
-                }
-            }
-            out.endTag(null, "services");
-            out.endDocument();
-            mDynamicAidsFile.finishWrite(fos);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing dynamic AIDs", e);
-            if (fos != null) {
-                mDynamicAidsFile.failWrite(fos);
+        for (DynamicAidStore.Entry entry : mDynamicAidStore.load()) {
+            final int userId = UserHandle.getUserId(entry.uid);
+            UserServices services = findOrCreateUserLocked(userId);
+            DynamicAids dynAids = services.dynamicAids.get(entry.component);
+            if (dynAids == null) {
+                dynAids = new DynamicAids(entry.uid);
+                services.dynamicAids.put(entry.component, dynAids);
             }
-            return false;
+            dynAids.aidGroups.put(entry.group.getCategory(), entry.group);
         }
     }
 
@@ -477,7 +503,7 @@ public class RegisteredServicesCache {
                 services.dynamicAids.put(componentName, dynAids);
             }
             dynAids.aidGroups.put(aidGroup.getCategory(), aidGroup);
-            success = writeDynamicAidsLocked();
+            success = mDynamicAidStore.putAidGroup(uid, componentName, aidGroup);
             if (success) {
                 newServices = new ArrayList<ApduServiceInfo>(services.services.values());
             } else {
@@ -529,7 +555,7 @@ public class RegisteredServicesCache {
                 DynamicAids dynAids = services.dynamicAids.get(componentName);
                 if (dynAids != null) {
                     AidGroup deletedGroup = dynAids.aidGroups.remove(category);
-                    success = writeDynamicAidsLocked();
+                    success = mDynamicAidStore.removeAidGroup(uid, componentName, category);
                     if (success) {
                         newServices = new ArrayList<ApduServiceInfo>(services.services.values());
                     } else {
@@ -557,6 +583,15 @@ public class RegisteredServicesCache {
             service.dump(fd, pw, args);
             pw.println("");
         }
+        pw.println("Service cache updates: " + mInvalidationsRequested + " requested, " +
+                mInvalidationsCoalesced + " coalesced, " + mInvalidationsRun + " run" +
+                " (window " + mUpdateDelayMs + "ms, max " + mMaxUpdateDelayMs + "ms)");
+        synchronized (mLock) {
+            mDynamicAidStore.dump(pw);
+            pw.println("Services loaded in " + mLastServicesLoadMs + " ms (" +
+                    mInitialServicesLoadMs + " ms at boot)");
+        }
+        mServiceInfoCache.dump(pw);
         pw.println("");
     }
 
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.content.pm.PackageInfo;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * ServiceInfoCache keeps the parsed meta-data of HCE and off-host services,
+ * so it doesn't need to be parsed again on every cache invalidation,
+ * at boot or on user switch.
+ *
+ * Entries are keyed by user and component, and are only used as long as the
+ * package's lastUpdateTime and versionCode and the locale are unchanged, as
+ * descriptions are loaded in the locale at parsing time. They hold the
+ * ApduServiceInfo as parceled right after parsing, so they never contain
+ * dynamic AID groups; every lookup returns a new object.
+ *
+ * The cache is persisted to a single file that is only valid for the build
+ * that wrote it, since the parcel format may change with an update.
+ *
+ * Thread-safe.
+ */
+final class ServiceInfoCache {
+    static final String TAG = "ServiceInfoCache";
+    static final boolean DBG = true;
+
+    static final String FILE_NAME = "service_info_cache.bin";
+
+    static final int MAGIC = 0x4E464353; // "NFCS"
+    static final int VERSION = 2;
+
+    static final class Entry {
+        final long lastUpdateTime;
+        final int versionCode;
+        final String locale;
+        final byte[] parceledInfo;
+
+        Entry(long lastUpdateTime, int versionCode, String locale, byte[] parceledInfo) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.versionCode = versionCode;
+            this.locale = locale;
+            this.parceledInfo = parceledInfo;
+        }
+    }
+
+    final AtomicFile mFile;
+    final String mBuildFingerprint;
+
+    final Object mLock = new Object();
+    // All variables below synchronized on mLock
+    final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    boolean mLoaded;
+    boolean mDirty;
+
+    int mHits;
+    int mMisses;
+    int mWrites;
+
+    ServiceInfoCache(File dataDir) {
+        this(dataDir, Build.FINGERPRINT);
+    }
+
+    ServiceInfoCache(File dataDir, String buildFingerprint) {
+        mFile = new AtomicFile(new File(dataDir, FILE_NAME));
+        mBuildFingerprint = buildFingerprint != null ? buildFingerprint : "";
+    }
+
+    static String getKey(int userId, ComponentName component) {
+        return userId + "/" + component.flattenToString();
+    }
+
+    /**
+     * Returns the cached service info, or null if there is none
+     * for this version of the package in this locale.
+     */
+    ApduServiceInfo get(int userId, ComponentName component, PackageInfo packageInfo,
+            String locale) {
+        synchronized (mLock) {
+            loadLocked();
+            Entry entry = mEntries.get(getKey(userId, component));
+            if (entry == null || entry.lastUpdateTime != packageInfo.lastUpdateTime ||
+                    entry.versionCode != packageInfo.versionCode ||
+                    !entry.locale.equals(locale)) {
+                mMisses++;
+                return null;
+            }
+            ApduServiceInfo info = unparcel(entry.parceledInfo);
+            if (info == null) {
+                mEntries.remove(getKey(userId, component));
+                mDirty = true;
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            return info;
+        }
+    }
+
+    /**
+     * Caches a service info that was just parsed in locale.
+     */
+    void put(int userId, ApduServiceInfo info, PackageInfo packageInfo, String locale) {
+        byte[] parceledInfo = parcel(info);
+        synchronized (mLock) {
+            loadLocked();
+            mEntries.put(getKey(userId, info.getComponent()),
+                    new Entry(packageInfo.lastUpdateTime, packageInfo.versionCode, locale,
+                            parceledInfo));
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drops the entries of userId that are not in components.
+     */
+    void retainAll(int userId, Set<ComponentName> components) {
+        synchronized (mLock) {
+            loadLocked();
+            String prefix = userId + "/";
+            Iterator<String> it = mEntries.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (!key.startsWith(prefix)) continue;
+                ComponentName component =
+                        ComponentName.unflattenFromString(key.substring(prefix.length()));
+                if (!components.contains(component)) {
+                    it.remove();
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists the cache if it changed since it was last written.
+     */
+    void writeIfDirty() {
+        synchronized (mLock) {
+            if (mDirty && writeLocked()) {
+                mDirty = false;
+            }
+        }
+    }
+
+    static byte[] parcel(ApduServiceInfo info) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static ApduServiceInfo unparcel(byte[] parceledInfo) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(parceledInfo, 0, parceledInfo.length);
+            parcel.setDataPosition(0);
+            return ApduServiceInfo.CREATOR.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not unparcel cached service info", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    void loadLocked() {
+        if (mLoaded) return;
+        mLoaded = true;
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        byte[] contents;
+        FileInputStream fis = null;
+        try {
+            fis = mFile.openRead();
+            contents = new byte[(int) mFile.getBaseFile().length()];
+            new DataInputStream(fis).readFully(contents);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read service info cache, trashing.", e);
+            mFile.delete();
+            return;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !mBuildFingerprint.equals(in.readUTF())) {
+                if (DBG) Log.d(TAG, "Service info cache is from another build, ignoring.");
+                mDirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long lastUpdateTime = in.readLong();
+                int versionCode = in.readInt();
+                String locale = in.readUTF();
+                byte[] parceledInfo = new byte[in.readInt()];
+                in.readFully(parceledInfo);
+                mEntries.put(key, new Entry(lastUpdateTime, versionCode, locale,
+                        parceledInfo));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not parse service info cache, trashing.");
+            mEntries.clear();
+            mDirty = true;
+        }
+    }
+
+    boolean writeLocked() {
+        FileOutputStream fos = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mBuildFingerprint);
+            out.writeInt(mEntries.size());
+            for (java.util.Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastUpdateTime);
+                out.writeInt(entry.versionCode);
+                out.writeUTF(entry.locale);
+                out.writeInt(entry.parceledInfo.length);
+                out.write(entry.parceledInfo);
+            }
+            out.flush();
+            fos = mFile.startWrite();
+            fos.write(bytes.toByteArray());
+            mFile.finishWrite(fos);
+            mWrites++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing service info cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Service info cache: " + mEntries.size() + " entries, " + mHits +
+                    " hits, " + mMisses + " misses, " + mWrites + " writes");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.Bundle;
+import android.os.MemoryFile;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SharedApduChannel passes APDUs to and from an HCE service through shared
+ * memory, instead of a Bundle in every Message.
+ *
+ * Services opt in with a meta-data entry in their manifest:
+ *
+ *   <meta-data android:name="android.nfc.cardemulation.shared_memory_apdus"
+ *       android:value="true"/>
+ *
+ * The NFC service offers a channel to such a service once it is bound, with
+ * MSG_SHARED_MEMORY_OFFER, which carries the memory's file descriptor. The
+ * service replies with MSG_SHARED_MEMORY_ACCEPT; until it does, it keeps
+ * getting MSG_COMMAND_APDU. Once accepted, a command is
+ * written to the command area and announced with MSG_SHARED_COMMAND_APDU,
+ * with the length in arg1; the service writes the response to the response
+ * area and announces it with MSG_SHARED_RESPONSE_APDU. Since ISO-DEP is
+ * half-duplex, there is at most one command outstanding, so each direction
+ * needs a single slot rather than a ring.
+ *
+ * Memory layout, all ints big-endian:
+ *   version, command offset, maximum command length,
+ *   response offset, maximum response length,
+ *   command area, response area
+ *
+ * Each channel is offered to one service only, so no service can read
+ * the APDUs meant for another.
+ */
+final class SharedApduChannel {
+    static final String TAG = "SharedApduChannel";
+
+    // Message codes outside of the range used by HostApduService
+    static final int MSG_SHARED_MEMORY_OFFER = 0x100;
+    static final int MSG_SHARED_MEMORY_ACCEPT = 0x101;
+    static final int MSG_SHARED_COMMAND_APDU = 0x102;
+    static final int MSG_SHARED_RESPONSE_APDU = 0x103;
+
+    static final String META_DATA_KEY = "android.nfc.cardemulation.shared_memory_apdus";
+
+    static final String KEY_MEMORY = "memory";
+    static final String KEY_SIZE = "size";
+
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 20;
+    // Extended length APDUs: header, 3 byte Lc, 65535 bytes of data, 3 byte Le
+    static final int MAX_COMMAND_LENGTH = 4 + 3 + 65535 + 3;
+    // 65536 bytes of data and the status word
+    static final int MAX_RESPONSE_LENGTH = 65536 + 2;
+    static final int COMMAND_OFFSET = HEADER_LENGTH;
+    static final int RESPONSE_OFFSET = COMMAND_OFFSET + MAX_COMMAND_LENGTH;
+    static final int SIZE = RESPONSE_OFFSET + MAX_RESPONSE_LENGTH;
+
+    final MemoryFile mMemory;
+    // The descriptor handed to the service, closed with the channel
+    ParcelFileDescriptor mSharedFd;
+    // Whether the service accepted the channel
+    boolean mAccepted;
+
+    SharedApduChannel(MemoryFile memory) {
+        mMemory = memory;
+    }
+
+    /**
+     * Returns a new channel, or null if no shared memory could be allocated.
+     */
+    static SharedApduChannel create() {
+        try {
+            MemoryFile memory = new MemoryFile("hce_apdus", SIZE);
+            byte[] header = ByteBuffer.allocate(HEADER_LENGTH)
+                    .putInt(VERSION)
+                    .putInt(COMMAND_OFFSET)
+                    .putInt(MAX_COMMAND_LENGTH)
+                    .putInt(RESPONSE_OFFSET)
+                    .putInt(MAX_RESPONSE_LENGTH)
+                    .array();
+            memory.writeBytes(header, 0, 0, HEADER_LENGTH);
+            return new SharedApduChannel(memory);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not allocate shared memory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the message that offers this channel to a service,
+     * or null if the memory can't be shared.
+     */
+    Message obtainOfferMessage() {
+        if (mSharedFd == null) {
+            try {
+                mSharedFd = ParcelFileDescriptor.dup(mMemory.getFileDescriptor());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not share memory", e);
+                return null;
+            }
+        }
+        Message msg = Message.obtain(null, MSG_SHARED_MEMORY_OFFER);
+        Bundle dataBundle = new Bundle();
+        dataBundle.putParcelable(KEY_MEMORY, mSharedFd);
+        dataBundle.putInt(KEY_SIZE, SIZE);
+        msg.setData(dataBundle);
+        return msg;
+    }
+
+    /**
+     * Writes a command and returns the message announcing it,
+     * or null if it doesn't fit.
+     */
+    Message writeCommand(byte[] data) {
+        if (!write(data, COMMAND_OFFSET, MAX_COMMAND_LENGTH)) {
+            return null;
+        }
+        return Message.obtain(null, MSG_SHARED_COMMAND_APDU, data.length, 0);
+    }
+
+    byte[] readCommand(int length) {
+        return read(COMMAND_OFFSET, MAX_COMMAND_LENGTH, length);
+    }
+
+    boolean writeResponse(byte[] data) {
+        return write(data, RESPONSE_OFFSET, MAX_RESPONSE_LENGTH);
+    }
+
+    /**
+     * Returns the response announced by a MSG_SHARED_RESPONSE_APDU,
+     * or null if its length is invalid.
+     */
+    byte[] readResponse(int length) {
+        return read(RESPONSE_OFFSET, MAX_RESPONSE_LENGTH, length);
+    }
+
+    boolean write(byte[] data, int offset, int maxLength) {
+        if (data.length > maxLength) {
+            return false;
+        }
+        try {
+            mMemory.writeBytes(data, 0, offset, data.length);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to shared memory", e);
+            return false;
+        }
+    }
+
+    byte[] read(int offset, int maxLength, int length) {
+        if (length <= 0 || length > maxLength) {
+            Log.e(TAG, "Invalid APDU length " + length);
+            return null;
+        }
+        byte[] data = new byte[length];
+        try {
+            mMemory.readBytes(data, offset, 0, length);
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read from shared memory", e);
+            return null;
+        }
+    }
+
+    void close() {
+        if (mSharedFd != null) {
+            try {
+                mSharedFd.close();
+            } catch (IOException e) {
+            }
+            mSharedFd = null;
+        }
+        mMemory.close();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Fixed responses an HCE service declares for SELECT commands, so that the
+ * NFC service can answer those without waiting for the service.
+ *
+ * A service declares them in a meta-data element of its manifest entry:
+ *
+ *   <meta-data android:name="android.nfc.cardemulation.static_select_responses"
+ *       android:value="325041592E5359532E4444463031:6F23...9000;A0000000031010:6F1E...9000"/>
+ *
+ * that is, semicolon separated pairs of an AID and the full response APDU,
+ * including the status word, in hex. They only apply to AIDs that resolve
+ * to the declaring service anyway.
+ */
+final class StaticSelectResponses {
+    static final String TAG = "StaticSelectResponses";
+
+    static final String META_DATA_KEY = "android.nfc.cardemulation.static_select_responses";
+
+    // A short response APDU: at most 256 bytes of data and the status word
+    static final int MAX_RESPONSE_LENGTH = 256 + 2;
+
+    final AidKey[] mAids;
+    final byte[][] mResponses;
+
+    StaticSelectResponses(AidKey[] aids, byte[][] responses) {
+        mAids = aids;
+        mResponses = responses;
+    }
+
+    /**
+     * Parses the meta-data value; returns null if it holds no valid entries.
+     * Invalid entries are skipped.
+     */
+    static StaticSelectResponses parse(String value) {
+        if (value == null) return null;
+        ArrayList<AidKey> aids = new ArrayList<AidKey>();
+        ArrayList<byte[]> responses = new ArrayList<byte[]>();
+        for (String entry : value.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int separator = entry.indexOf(':');
+            if (separator < 0) {
+                Log.e(TAG, "Ignoring static SELECT response without AID: " + entry);
+                continue;
+            }
+            String aid = entry.substring(0, separator).trim();
+            String response = entry.substring(separator + 1).trim();
+            AidKey aidKey = RegisteredAidCache.isPrefix(aid) ? null : AidKey.fromString(aid);
+            byte[] responseBytes = RegisteredAidCache.isPrefix(response) ?
+                    null : AidTrie.aidToBytes(response);
+            if (aidKey == null || aidKey.length() < HostEmulationManager.MINIMUM_AID_LENGTH ||
+                    aidKey.length() > HostEmulationManager.MAXIMUM_AID_LENGTH) {
+                Log.e(TAG, "Ignoring static SELECT response for invalid AID " + aid);
+                continue;
+            }
+            if (responseBytes == null || responseBytes.length < 2 ||
+                    responseBytes.length > MAX_RESPONSE_LENGTH) {
+                Log.e(TAG, "Ignoring invalid static SELECT response for " + aid);
+                continue;
+            }
+            aids.add(aidKey);
+            responses.add(responseBytes);
+        }
+        if (aids.isEmpty()) return null;
+        return new StaticSelectResponses(aids.toArray(new AidKey[aids.size()]),
+                responses.toArray(new byte[responses.size()][]));
+    }
+
+    /**
+     * Returns the response for the AID in buf[offset..offset+length),
+     * or null if there is none.
+     */
+    byte[] get(byte[] buf, int offset, int length) {
+        for (int i = 0; i < mAids.length; i++) {
+            if (mAids[i].matches(buf, offset, length)) {
+                return mResponses[i];
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return mAids.length;
+    }
+}
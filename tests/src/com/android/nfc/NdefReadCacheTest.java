@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests validating and evicting cached NDEF messages.
+ */
+public class NdefReadCacheTest extends AndroidTestCase {
+    private static final byte[] UID = {0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    private static final byte[] PREFIX = {0x03, 0x0A, (byte) 0xD1, 0x01, 0x06, 0x54};
+    private static final byte[] NDEF = {(byte) 0xD1, 0x01, 0x06, 0x54, 0x02, 0x65, 0x6E};
+
+    private NdefReadCache mCache;
+    private int mFingerprint;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = NdefReadCache.getInstance();
+        mCache.setEnabled(false);
+        mCache.setEnabled(true);
+        mFingerprint = NdefReadCache.getFingerprint(2, 46, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.setEnabled(false);
+        super.tearDown();
+    }
+
+    public void testHit() {
+        assertNull(mCache.get(UID, mFingerprint, PREFIX));
+        mCache.put(UID, mFingerprint, PREFIX, NDEF);
+        byte[] ndef = mCache.get(UID, mFingerprint, PREFIX.clone());
+        assertTrue(Arrays.equals(NDEF, ndef));
+        assertNotSame(NDEF, ndef);
+    }
+
+    public void testRewrittenTag() {
+        mCache.put(UID, mFingerprint, PREFIX, NDEF);
+        byte[] prefix = PREFIX.clone();
+        prefix[1] = 0x0B;
+        assertNull(mCache.get(UID, mFingerprint, prefix));
+        // The stale entry is gone, even for the old prefix
+        assertNull(mCache.get(UID, mFingerprint, PREFIX));
+    }
+
+    public void testReadOnlyTag() {
+        mCache.put(UID, mFingerprint, PREFIX, NDEF);
+        assertNull(mCache.get(UID, NdefReadCache.getFingerprint(2, 46, 3), PREFIX));
+    }
+
+    public void testInvalidate() {
+        mCache.put(UID, mFingerprint, PREFIX, NDEF);
+        mCache.invalidate(UID);
+        assertNull(mCache.get(UID, mFingerprint, PREFIX));
+    }
+
+    public void testDisabled() {
+        mCache.put(UID, mFingerprint, PREFIX, NDEF);
+        mCache.setEnabled(false);
+        assertNull(mCache.get(UID, mFingerprint, PREFIX));
+        mCache.setEnabled(true);
+        assertNull(mCache.get(UID, mFingerprint, PREFIX));
+    }
+
+    public void testEviction() {
+        byte[] uid = UID.clone();
+        for (int i = 0; i <= NdefReadCache.MAX_ENTRIES; i++) {
+            if (i == NdefReadCache.MAX_ENTRIES) {
+                // Make the first tag recently used before the cache overflows
+                uid[5] = 0;
+                uid[6] = 0;
+                assertNotNull(mCache.get(uid, mFingerprint, PREFIX));
+            }
+            uid[5] = (byte) (i >> 8);
+            uid[6] = (byte) i;
+            mCache.put(uid, mFingerprint, PREFIX, NDEF);
+        }
+        assertEquals(NdefReadCache.MAX_ENTRIES, mCache.size());
+        uid[5] = 0;
+        uid[6] = 0;
+        assertNotNull(mCache.get(uid, mFingerprint, PREFIX));
+        uid[6] = 1;
+        assertNull(mCache.get(uid, mFingerprint, PREFIX));
+    }
+}
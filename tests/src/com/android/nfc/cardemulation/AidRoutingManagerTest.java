@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests finding default route AIDs that are shadowed by shorter AIDs on
+ * other routes, and compares it against the nested loop it replaced.
+ */
+public class AidRoutingManagerTest extends AndroidTestCase {
+    private static final String TAG = "AidRoutingManagerTest";
+    private static final int NUM_AIDS = 10000;
+    private static final int DEFAULT_ROUTE = 0x00;
+    private static final int OFF_HOST_ROUTE = 0x01;
+
+    public void testFindShadowedAids() {
+        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>();
+        routeForAid.put("F000000004", OFF_HOST_ROUTE);
+        routeForAid.put("F0000000041010", DEFAULT_ROUTE);
+        routeForAid.put("F0000000042010", DEFAULT_ROUTE);
+        routeForAid.put("F0000000051010", DEFAULT_ROUTE);
+        routeForAid.put("F00000000601", OFF_HOST_ROUTE);
+        routeForAid.put("F0000000060101", OFF_HOST_ROUTE);
+        routeForAid.put("F000000006010101", DEFAULT_ROUTE);
+        routeForAid.put("F00000000602", DEFAULT_ROUTE);
+
+        List<String> shadowedAids = AidRoutingManager.findShadowedAids(routeForAid,
+                DEFAULT_ROUTE);
+        assertEquals(3, shadowedAids.size());
+        assertTrue(shadowedAids.contains("F0000000041010"));
+        assertTrue(shadowedAids.contains("F0000000042010"));
+        assertTrue(shadowedAids.contains("F000000006010101"));
+    }
+
+    public void testFindShadowedAidsPerformance() {
+        Random random = new Random(0);
+        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>();
+        ArrayList<String> offHostAids = new ArrayList<String>();
+        while (routeForAid.size() < NUM_AIDS) {
+            if (!offHostAids.isEmpty() && random.nextInt(10) == 0) {
+                // Extend an off-host AID, so it gets shadowed
+                String aid = offHostAids.get(random.nextInt(offHostAids.size()));
+                routeForAid.put(aid + String.format("%02X", random.nextInt(256)), DEFAULT_ROUTE);
+            } else if (random.nextInt(3) == 0) {
+                String aid = AidTrieTest.randomAid(random);
+                routeForAid.put(aid, OFF_HOST_ROUTE);
+                offHostAids.add(aid);
+            } else {
+                routeForAid.put(AidTrieTest.randomAid(random), DEFAULT_ROUTE);
+            }
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        HashSet<String> expected = findShadowedAidsNested(routeForAid, DEFAULT_ROUTE);
+        long nestedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        List<String> shadowedAids = AidRoutingManager.findShadowedAids(routeForAid,
+                DEFAULT_ROUTE);
+        long sortedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(expected, new HashSet<String>(shadowedAids));
+        assertEquals(expected.size(), shadowedAids.size());
+        Log.d(TAG, NUM_AIDS + " AIDs, " + expected.size() + " shadowed: nested loop " +
+                (nestedNanos / 1000000) + " ms, sorted pass " + (sortedNanos / 1000000) + " ms");
+    }
+
+    /**
+     * The nested loop that AidRoutingManager.configureRouting() used before.
+     */
+    static HashSet<String> findShadowedAidsNested(Map<String, Integer> routeForAid,
+            int defaultRoute) {
+        HashSet<String> shadowedAids = new HashSet<String>();
+        for (Map.Entry<String, Integer> defaultEntry : routeForAid.entrySet()) {
+            if (defaultEntry.getValue() != defaultRoute) continue;
+            String defaultRouteAid = defaultEntry.getKey();
+            for (Map.Entry<String, Integer> aidEntry : routeForAid.entrySet()) {
+                String aid = aidEntry.getKey();
+                int route = aidEntry.getValue();
+                if (defaultRouteAid.startsWith(aid) && route != defaultRoute) {
+                    shadowedAids.add(defaultRouteAid);
+                }
+            }
+        }
+        return shadowedAids;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+
+/**
+ * Tests fitting the AID routing table into the controller's table size.
+ */
+public class AidRoutingPlannerTest extends AndroidTestCase {
+    private static final int DEFAULT_ROUTE = 0x00;
+    private static final int OFF_HOST_ROUTE = 0x01;
+    private static final int POWER = 0x01;
+
+    private final Hashtable<String, AidElement> mRouteCache = new Hashtable<String, AidElement>();
+    private final HashMap<String, Integer> mRouteForAid = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mPowerForAid = new HashMap<String, Integer>();
+
+    private void addAid(String aid, int route, int weight) {
+        if (route != DEFAULT_ROUTE) {
+            mRouteCache.put(aid, new AidElement(aid, weight, route, POWER));
+        }
+        mRouteForAid.put(aid, route);
+        mPowerForAid.put(aid, POWER);
+    }
+
+    public void testFitsUnchanged() {
+        addAid("A0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("A0000000032010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 100);
+        assertEquals(2, plan.size());
+        assertEquals(22, planner.mPlannedSize);
+        assertTrue(planner.mAggregatedPrefixes.isEmpty());
+    }
+
+    public void testAggregatesSiblings() {
+        addAid("A0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("A0000000032010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_PAYMENT);
+        addAid("A0000000033010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 20);
+        assertEquals(1, plan.size());
+        AidElement aggregate = plan.get("A000000003*");
+        assertNotNull(aggregate);
+        assertEquals("A000000003*", aggregate.getAid());
+        assertEquals(AidElement.ROUTE_WIEGHT_PAYMENT, aggregate.getWeight());
+        assertEquals(OFF_HOST_ROUTE, aggregate.getRouteLocation());
+        assertTrue(planner.mDroppedAids.isEmpty());
+    }
+
+    public void testDoesNotCaptureOtherRoutes() {
+        addAid("A0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("A0000000032010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        // A000000003* would capture this one as well
+        addAid("A0000000033010", DEFAULT_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_PREFIX_ONLY);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 12);
+        assertTrue(planner.mAggregatedPrefixes.isEmpty());
+        assertEquals(1, plan.size());
+        assertEquals(1, planner.mDroppedAids.size());
+    }
+
+    public void testAggregatesWithoutPrefixMarker() {
+        addAid("A0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("A0000000031020", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_PREFIX_ONLY);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 12);
+        assertEquals(1, plan.size());
+        // The controller treats every entry as a prefix, so no '*' is added
+        assertEquals("A00000000310", plan.get("A00000000310*").getAid());
+    }
+
+    public void testDropsLowestPriority() {
+        addAid("A0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_PAYMENT);
+        addAid("B0000000031010", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_EXACT_ONLY);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 20);
+        assertEquals(1, plan.size());
+        assertTrue(plan.containsKey("A0000000031010"));
+        assertEquals(1, planner.mDroppedAids.size());
+        assertEquals("B0000000031010", planner.mDroppedAids.get(0));
+    }
+
+    public void testKeepsProtectionWithShadowingPrefix() {
+        addAid("A000000003", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_PAYMENT);
+        addAid("A0000000031010", DEFAULT_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("B000000003101020", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        // Keeps A0000000031010 at the default route, despite A000000003
+        mRouteCache.put("A0000000031010", new AidElement("A0000000031010",
+                AidElement.ROUTE_WIEGHT_OTHER, DEFAULT_ROUTE, POWER));
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_PREFIX_ONLY);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 22);
+        assertTrue(plan.containsKey("A000000003"));
+        assertTrue(plan.containsKey("A0000000031010"));
+        assertEquals(1, planner.mDroppedAids.size());
+        assertEquals("B000000003101020", planner.mDroppedAids.get(0));
+    }
+
+    public void testDropsProtectionWithShadowingPrefix() {
+        addAid("A000000003", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("A0000000031010", DEFAULT_ROUTE, AidElement.ROUTE_WIEGHT_OTHER);
+        addAid("B000000003101020", OFF_HOST_ROUTE, AidElement.ROUTE_WIEGHT_PAYMENT);
+        mRouteCache.put("A0000000031010", new AidElement("A0000000031010",
+                AidElement.ROUTE_WIEGHT_OTHER, DEFAULT_ROUTE, POWER));
+        AidRoutingPlanner planner = new AidRoutingPlanner(
+                AidRoutingManager.AID_MATCHING_PREFIX_ONLY);
+
+        Hashtable<String, AidElement> plan = planner.plan(mRouteCache, mRouteForAid,
+                mPowerForAid, DEFAULT_ROUTE, 22);
+        // The prefix goes, and the protection with it
+        assertEquals(1, plan.size());
+        assertTrue(plan.containsKey("B000000003101020"));
+        assertEquals(1, planner.mDroppedAids.size());
+        assertEquals("A000000003", planner.mDroppedAids.get(0));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.app.ActivityManager;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.nfc.cardemulation.AidGroup;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.nfc.cardemulation.HostApduService;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fires concurrent service updates at a RegisteredAidCache, as caused by
+ * package updates, while a storm of SELECTs is resolved against it, and
+ * checks that registered AIDs keep resolving. Lookup latency is logged.
+ */
+public class AidTrieStressTest extends AndroidTestCase {
+    private static final String TAG = "AidTrieStressTest";
+    private static final int NUM_AIDS = AidGroup.MAX_NUM_AIDS;
+    private static final int NUM_UPDATES = 50;
+    private static final int NUM_WRITERS = 2;
+    private static final int NUM_READERS = 2;
+
+    private RegisteredAidCache mAidCache;
+    private ResolveInfo mResolvedService;
+    private int mUserId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // NFC stays off for this cache, so no routing table is committed
+        mAidCache = new RegisteredAidCache(getContext(), new AidRoutingManager());
+        mUserId = ActivityManager.getCurrentUser();
+        Intent intent = new Intent(HostApduService.SERVICE_INTERFACE);
+        intent.setPackage(getContext().getPackageName());
+        List<ResolveInfo> resolved = getContext().getPackageManager().queryIntentServices(
+                intent, PackageManager.GET_META_DATA);
+        assertEquals(1, resolved.size());
+        mResolvedService = resolved.get(0);
+    }
+
+    public void testLookupsDuringServiceUpdates() throws Exception {
+        // All but the last AID stay registered through every update
+        final ArrayList<String> aids = newAids(new Random(0));
+        final byte[][] selectedAids = new byte[NUM_AIDS - 1][];
+        for (int i = 0; i < selectedAids.length; i++) {
+            selectedAids[i] = AidTrie.aidToBytes(aids.get(i));
+        }
+        mAidCache.onServicesUpdated(mUserId, newServices(aids));
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong lookups = new AtomicLong(0);
+        final AtomicLong maxLatency = new AtomicLong(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] readers = new Thread[NUM_READERS];
+        for (int i = 0; i < NUM_READERS; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    int n = 0;
+                    long localMax = 0;
+                    while (!done.get()) {
+                        byte[] aid = selectedAids[n++ % selectedAids.length];
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        AidResolveInfo info = mAidCache.resolveAid(aid, 0, aid.length);
+                        long latency = SystemClock.elapsedRealtimeNanos() - start;
+                        if (info == null || info.services.size() != 1) {
+                            failed.set(true);
+                        }
+                        lookups.incrementAndGet();
+                        if (latency > localMax) {
+                            localMax = latency;
+                        }
+                    }
+                    synchronized (maxLatency) {
+                        if (localMax > maxLatency.get()) {
+                            maxLatency.set(localMax);
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        // Simulate package updates from several threads: each one swaps the
+        // last AID, while the other AIDs must keep resolving.
+        final AtomicLong updateNanos = new AtomicLong(0);
+        final AtomicInteger updatesWithoutLookups = new AtomicInteger(0);
+        final AtomicBoolean updateFailed = new AtomicBoolean(false);
+        Thread[] writers = new Thread[NUM_WRITERS];
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            final Random random = new Random(i + 1);
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < NUM_UPDATES; n++) {
+                            ArrayList<String> updated = new ArrayList<String>(aids);
+                            updated.set(NUM_AIDS - 1, AidTrieTest.randomAid(random));
+                            List<ApduServiceInfo> services = newServices(updated);
+                            long lookupsBefore = lookups.get();
+                            long start = SystemClock.elapsedRealtimeNanos();
+                            mAidCache.onServicesUpdated(mUserId, services);
+                            updateNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+                            if (lookups.get() == lookupsBefore) {
+                                updatesWithoutLookups.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Update failed", e);
+                        updateFailed.set(true);
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        final int numUpdates = NUM_WRITERS * NUM_UPDATES;
+        Log.d(TAG, lookups.get() + " lookups during " + numUpdates + " updates (avg " +
+                (updateNanos.get() / numUpdates / 1000) + " us), " +
+                updatesWithoutLookups.get() + " updates without lookups; worst case lookup " +
+                (maxLatency.get() / 1000) + " us");
+        assertFalse("Service update failed", updateFailed.get());
+        assertFalse("Lookup of a registered AID failed", failed.get());
+    }
+
+    /**
+     * Returns the test package's HCE service, registering aids dynamically.
+     */
+    List<ApduServiceInfo> newServices(List<String> aids) throws Exception {
+        ApduServiceInfo service = new ApduServiceInfo(getContext().getPackageManager(),
+                mResolvedService, true);
+        service.setOrReplaceDynamicAidGroup(new AidGroup(aids, CardEmulation.CATEGORY_OTHER));
+        ArrayList<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
+        services.add(service);
+        return services;
+    }
+
+    static ArrayList<String> newAids(Random random) {
+        TreeSet<String> aids = new TreeSet<String>();
+        while (aids.size() < NUM_AIDS) {
+            aids.add(AidTrieTest.randomAid(random));
+        }
+        return new ArrayList<String>(aids);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.nfc.cardemulation.CardEmulation;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.nfc.cardemulation.RegisteredAidCache.AidResolveInfo;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Tests AID resolution through the compiled AID trie, and compares
+ * its lookup time against the String TreeMap lookup it replaced.
+ */
+public class AidTrieTest extends AndroidTestCase {
+    private static final String TAG = "AidTrieTest";
+    private static final int NUM_AIDS = 5000;
+    private static final int NUM_LOOKUPS = 100000;
+
+    public void testExactMatch() {
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        AidResolveInfo info = newResolveInfo();
+        cache.put("A0000000031010", info);
+        AidTrie trie = new AidTrie(cache, false);
+
+        byte[] aid = AidTrie.aidToBytes("A0000000031010");
+        assertSame(info, trie.resolve(aid, 0, aid.length));
+
+        byte[] longer = AidTrie.aidToBytes("A000000003101001");
+        assertNull(trie.resolve(longer, 0, longer.length));
+        byte[] shorter = AidTrie.aidToBytes("A00000000310");
+        assertNull(trie.resolve(shorter, 0, shorter.length));
+    }
+
+    public void testPrefixIgnoredWithoutPrefixSupport() {
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        cache.put("A000000003*", newResolveInfo());
+        AidTrie trie = new AidTrie(cache, false);
+
+        byte[] aid = AidTrie.aidToBytes("A0000000031010");
+        assertNull(trie.resolve(aid, 0, aid.length));
+        assertEquals(0, trie.size());
+    }
+
+    public void testPrefixMatch() {
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        cache.put("A000000003*", newResolveInfo());
+        cache.put("A0000000031010", newResolveInfo());
+        AidTrie trie = new AidTrie(cache, true);
+
+        byte[] first = AidTrie.aidToBytes("A0000000032010");
+        byte[] second = AidTrie.aidToBytes("A00000000399");
+        AidResolveInfo firstInfo = trie.resolve(first, 0, first.length);
+        assertNotSame(trie.mNoMatch, firstInfo);
+        // Both only match the prefix, so they share the precomputed result
+        assertSame(firstInfo, trie.resolve(second, 0, second.length));
+
+        byte[] exact = AidTrie.aidToBytes("A0000000031010");
+        AidResolveInfo exactInfo = trie.resolve(exact, 0, exact.length);
+        assertNotSame(trie.mNoMatch, exactInfo);
+        assertNotSame(firstInfo, exactInfo);
+
+        byte[] other = AidTrie.aidToBytes("A0000000041010");
+        assertSame(trie.mNoMatch, trie.resolve(other, 0, other.length));
+        assertEquals(CardEmulation.CATEGORY_OTHER, trie.mNoMatch.category);
+    }
+
+    public void testResolveWithOffset() {
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        AidResolveInfo info = newResolveInfo();
+        cache.put("F0010203040506", info);
+        AidTrie trie = new AidTrie(cache, false);
+
+        byte[] selectApdu = {0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+                (byte) 0xF0, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00};
+        assertSame(info, trie.resolve(selectApdu, 5, 7));
+    }
+
+    public void testFindOccurrence() {
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        cache.put("A0000000031010", newResolveInfo());
+        cache.put("A0000000032010", newResolveInfo());
+        cache.put("A0000000041010", newResolveInfo());
+        AidTrie trie = new AidTrie(cache, true);
+
+        byte[] partial = AidTrie.aidToBytes("A000000003");
+        AidKey first = trie.findOccurrence(partial, 0, partial.length, null, 0);
+        assertEquals("A0000000031010", first.toString());
+        AidKey next = trie.findOccurrence(partial, 0, partial.length, first.mBytes,
+                first.length());
+        assertEquals("A0000000032010", next.toString());
+        assertNull(trie.findOccurrence(partial, 0, partial.length, next.mBytes, next.length()));
+
+        // Without a previous AID of this partial AID, the first occurrence is found
+        byte[] other = AidTrie.aidToBytes("A0000000041010");
+        assertEquals("A0000000031010", trie.findOccurrence(partial, 0, partial.length,
+                other, other.length).toString());
+        byte[] before = AidTrie.aidToBytes("A0000000021010");
+        assertEquals("A0000000031010", trie.findOccurrence(partial, 0, partial.length,
+                before, before.length).toString());
+
+        byte[] unknown = AidTrie.aidToBytes("A000000005");
+        assertNull(trie.findOccurrence(unknown, 0, unknown.length, null, 0));
+    }
+
+    public void testLookupPerformance() {
+        Random random = new Random(0);
+        TreeMap<String, AidResolveInfo> cache = new TreeMap<String, AidResolveInfo>();
+        ArrayList<String> selectedAids = new ArrayList<String>();
+        while (cache.size() < NUM_AIDS) {
+            String aid = randomAid(random);
+            if (random.nextInt(10) == 0) {
+                cache.put(aid + "*", newResolveInfo());
+                // Select something below the prefix
+                selectedAids.add(aid + "01");
+            } else {
+                cache.put(aid, newResolveInfo());
+                selectedAids.add(aid);
+            }
+        }
+        AidTrie trie = new AidTrie(cache, true);
+        byte[][] selectedAidBytes = new byte[selectedAids.size()][];
+        for (int i = 0; i < selectedAids.size(); i++) {
+            selectedAidBytes[i] = AidTrie.aidToBytes(selectedAids.get(i));
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            AidResolveInfo info = resolveWithTreeMap(cache, selectedAids.get(i % NUM_AIDS));
+            assertNotNull(info);
+        }
+        long treeMapNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            byte[] aid = selectedAidBytes[i % NUM_AIDS];
+            AidResolveInfo info = trie.resolve(aid, 0, aid.length);
+            assertNotSame(trie.mNoMatch, info);
+        }
+        long trieNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, NUM_AIDS + " AIDs, " + NUM_LOOKUPS + " lookups: TreeMap " +
+                (treeMapNanos / NUM_LOOKUPS) + " ns/lookup, trie " +
+                (trieNanos / NUM_LOOKUPS) + " ns/lookup");
+    }
+
+    static AidResolveInfo newResolveInfo() {
+        AidResolveInfo info = new AidResolveInfo();
+        info.category = CardEmulation.CATEGORY_OTHER;
+        return info;
+    }
+
+    static String randomAid(Random random) {
+        StringBuilder sb = new StringBuilder("A0");
+        int length = 5 + random.nextInt(8);
+        for (int i = 1; i < length; i++) {
+            sb.append(String.format("%02X", random.nextInt(256)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The String based lookup that RegisteredAidCache used before the trie.
+     */
+    static AidResolveInfo resolveWithTreeMap(TreeMap<String, AidResolveInfo> cache, String aid) {
+        AidResolveInfo resolveInfo = new AidResolveInfo();
+        String shortestAidMatch = aid.substring(0, 10);
+        String longestAidMatch = aid + "*";
+        NavigableMap<String, AidResolveInfo> matchingAids =
+                cache.subMap(shortestAidMatch, true, longestAidMatch, true);
+        resolveInfo.category = CardEmulation.CATEGORY_OTHER;
+        for (Map.Entry<String, AidResolveInfo> entry : matchingAids.entrySet()) {
+            boolean isPrefix = RegisteredAidCache.isPrefix(entry.getKey());
+            String entryAid = isPrefix ? entry.getKey().substring(0,
+                    entry.getKey().length() - 1) : entry.getKey();
+            if (entryAid.equalsIgnoreCase(aid) || (isPrefix && aid.startsWith(entryAid))) {
+                AidResolveInfo entryResolveInfo = entry.getValue();
+                if (entryResolveInfo.defaultService != null) {
+                    resolveInfo.defaultService = entryResolveInfo.defaultService;
+                    resolveInfo.category = entryResolveInfo.category;
+                }
+                resolveInfo.services.addAll(entryResolveInfo.services);
+            }
+        }
+        return resolveInfo;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests reassembling chained commands and splitting long responses.
+ */
+public class ApduAssemblerTest extends AndroidTestCase {
+    private ApduAssembler mAssembler;
+    private CommandApdu mApdu;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAssembler = new ApduAssembler();
+        mApdu = new CommandApdu();
+    }
+
+    private static byte[] command(int cla, int dataLength, int le) {
+        byte[] apdu = new byte[5 + dataLength + (le >= 0 ? 1 : 0)];
+        apdu[0] = (byte) cla;
+        apdu[1] = (byte) 0xDA;
+        apdu[2] = 0x01;
+        apdu[3] = 0x02;
+        apdu[4] = (byte) dataLength;
+        for (int i = 0; i < dataLength; i++) {
+            apdu[5 + i] = (byte) i;
+        }
+        if (le >= 0) apdu[apdu.length - 1] = (byte) le;
+        return apdu;
+    }
+
+    private int add(byte[] apdu) {
+        assertTrue(mApdu.parse(apdu));
+        return mAssembler.add(mApdu);
+    }
+
+    public void testNotChained() {
+        assertEquals(ApduAssembler.RESULT_NOT_CHAINED, add(command(0x00, 10, 0)));
+    }
+
+    public void testChainToExtended() {
+        assertEquals(ApduAssembler.RESULT_MORE, add(command(0x11, 200, -1)));
+        assertEquals(ApduAssembler.RESULT_MORE, add(command(0x11, 200, -1)));
+        assertEquals(ApduAssembler.RESULT_COMPLETE, add(command(0x01, 100, 0)));
+
+        // 500 bytes need an extended Lc, and the short Le of 256 follows it
+        byte[] assembled = mAssembler.getAssembled();
+        assertTrue(mApdu.parse(assembled));
+        assertTrue(mApdu.isExtended());
+        assertFalse(mApdu.isChained());
+        assertEquals(0x01, mApdu.getCla());
+        assertEquals(500, mApdu.getDataLength());
+        assertEquals(256, mApdu.getLe());
+        assertEquals((byte) 199, assembled[mApdu.getDataOffset() + 199]);
+        assertEquals(0, assembled[mApdu.getDataOffset() + 200]);
+    }
+
+    public void testChainToShort() {
+        assertEquals(ApduAssembler.RESULT_MORE, add(command(0x10, 20, -1)));
+        assertEquals(ApduAssembler.RESULT_COMPLETE, add(command(0x00, 20, -1)));
+        assertTrue(mApdu.parse(mAssembler.getAssembled()));
+        assertFalse(mApdu.isExtended());
+        assertEquals(40, mApdu.getDataLength());
+        assertEquals(-1, mApdu.getLe());
+    }
+
+    public void testBrokenChain() {
+        assertEquals(ApduAssembler.RESULT_MORE, add(command(0x10, 20, -1)));
+        byte[] other = command(0x00, 20, -1);
+        other[1] = (byte) 0xD6;
+        assertEquals(ApduAssembler.RESULT_ERROR, add(other));
+        assertTrue(Arrays.equals(ApduAssembler.LAST_COMMAND_EXPECTED, mAssembler.getError()));
+        // The next command starts afresh
+        assertEquals(ApduAssembler.RESULT_NOT_CHAINED, add(command(0x00, 20, -1)));
+    }
+
+    public void testSplitResponse() {
+        mAssembler.setSplitResponses(true);
+        add(command(0x00, 10, 0));
+        byte[] response = new byte[600 + 2];
+        for (int i = 0; i < 600; i++) {
+            response[i] = (byte) i;
+        }
+        response[600] = (byte) 0x90;
+
+        byte[] part = mAssembler.splitResponse(response);
+        assertEquals(256 + 2, part.length);
+        assertEquals(0x61, part[256]);
+        assertEquals(0x00, part[257]);
+        assertTrue(mAssembler.hasPendingResponse());
+
+        part = mAssembler.nextResponse(256);
+        assertEquals(256 + 2, part.length);
+        assertEquals((byte) 256, part[0]);
+        assertEquals(0x61, part[256]);
+        assertEquals(88, part[257]);
+
+        part = mAssembler.nextResponse(88);
+        assertEquals(88 + 2, part.length);
+        assertEquals((byte) 0x90, part[88]);
+        assertEquals(0x00, part[89]);
+        assertFalse(mAssembler.hasPendingResponse());
+    }
+
+    public void testNoSplitByDefault() {
+        add(command(0x00, 10, 0));
+        byte[] response = new byte[600 + 2];
+        assertSame(response, mAssembler.splitResponse(response));
+        assertFalse(mAssembler.hasPendingResponse());
+    }
+
+    public void testDropPendingResponse() {
+        mAssembler.setSplitResponses(true);
+        add(command(0x00, 10, 0));
+        mAssembler.splitResponse(new byte[600 + 2]);
+        assertTrue(mAssembler.hasPendingResponse());
+        mAssembler.dropPendingResponse();
+        assertFalse(mAssembler.hasPendingResponse());
+        assertTrue(Arrays.equals(ApduAssembler.CONDITIONS_NOT_SATISFIED,
+                mAssembler.nextResponse(256)));
+    }
+
+    public void testNoSplitForExtendedCommand() {
+        mAssembler.setSplitResponses(true);
+        byte[] extended = {0x00, (byte) 0xB0, 0x00, 0x00, 0x00, 0x02, 0x00};
+        assertTrue(mApdu.parse(extended));
+        assertEquals(512, mApdu.getLe());
+        assertEquals(ApduAssembler.RESULT_NOT_CHAINED, mAssembler.add(mApdu));
+        byte[] response = new byte[512 + 2];
+        assertSame(response, mAssembler.splitResponse(response));
+        assertFalse(mAssembler.hasPendingResponse());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests parsing of short and extended length command APDUs.
+ */
+public class CommandApduTest extends AndroidTestCase {
+
+    public void testShortSelect() {
+        byte[] apdu = {0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+                (byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x10, 0x10, 0x00};
+        CommandApdu command = new CommandApdu();
+        assertTrue(command.parse(apdu));
+        assertTrue(command.isSelectByAid());
+        assertFalse(command.isExtended());
+        assertEquals(5, command.getDataOffset());
+        assertEquals(7, command.getDataLength());
+        assertEquals(CommandApdu.P2_FIRST_OR_ONLY_OCCURRENCE, command.getOccurrence());
+    }
+
+    public void testExtendedSelect() {
+        byte[] apdu = {0x00, (byte) 0xA4, 0x04, 0x02, 0x00, 0x00, 0x05,
+                (byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00};
+        CommandApdu command = new CommandApdu();
+        assertTrue(command.parse(apdu));
+        assertTrue(command.isSelectByAid());
+        assertTrue(command.isExtended());
+        assertEquals(7, command.getDataOffset());
+        assertEquals(5, command.getDataLength());
+        assertEquals(CommandApdu.P2_NEXT_OCCURRENCE, command.getOccurrence());
+    }
+
+    public void testTruncatedData() {
+        byte[] apdu = {0x00, (byte) 0xA4, 0x04, 0x00, 0x07, (byte) 0xA0, 0x00};
+        CommandApdu command = new CommandApdu();
+        assertFalse(command.parse(apdu));
+        assertFalse(command.isSelectByAid());
+    }
+
+    public void testLogicalChannels() {
+        byte[] apdu = {0x02, (byte) 0xA4, 0x04, 0x00, 0x05,
+                (byte) 0xA0, 0x00, 0x00, 0x00, 0x03};
+        CommandApdu command = new CommandApdu();
+        assertTrue(command.parse(apdu));
+        assertTrue(command.isSelectByAid());
+        assertEquals(2, CommandApdu.getLogicalChannel(apdu[0] & 0xFF));
+        assertEquals(0, CommandApdu.getLogicalChannel(0x80));
+        assertEquals(0, CommandApdu.getLogicalChannel(0x84));
+        assertEquals(0, CommandApdu.getLogicalChannel(0xC0));
+        assertEquals(0, CommandApdu.getLogicalChannel(0xFE));
+        assertEquals(5, CommandApdu.getLogicalChannel(0x41));
+
+        // Chaining is not part of the channel
+        apdu[0] = 0x12;
+        assertTrue(command.parse(apdu));
+        assertFalse(command.isSelectByAid());
+
+        byte[] manageChannel = {0x00, 0x70, 0x00, 0x00, 0x01};
+        assertTrue(command.parse(manageChannel));
+        assertTrue(command.isManageChannel());
+        assertEquals(CommandApdu.P1_OPEN_CHANNEL, command.getP1());
+    }
+
+    public void testNonSelect() {
+        byte[] apdu = {(byte) 0x80, (byte) 0xCA, (byte) 0x9F, 0x7F, 0x00};
+        CommandApdu command = new CommandApdu();
+        assertTrue(command.parse(apdu));
+        assertFalse(command.isSelectByAid());
+        assertEquals(0, command.getDataLength());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.nfc.cardemulation.AidGroup;
+import android.test.AndroidTestCase;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tests appending, reloading and compacting the dynamic AID store.
+ */
+public class DynamicAidStoreTest extends AndroidTestCase {
+    private static final int UID = 10001;
+    private static final ComponentName SERVICE =
+            new ComponentName("com.example.hce", "com.example.hce.PaymentService");
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "dynamic_aid_store_test");
+        mDir.mkdirs();
+        new File(mDir, DynamicAidStore.FILE_NAME).delete();
+        new File(mDir, DynamicAidStore.FILE_NAME + ".bak").delete();
+        new File(mDir, DynamicAidStore.LEGACY_XML_FILE_NAME).delete();
+    }
+
+    private static AidGroup createGroup(String category, String... aids) {
+        return new AidGroup(new ArrayList<String>(Arrays.asList(aids)), category);
+    }
+
+    public void testReloadsAppendedChanges() {
+        DynamicAidStore store = new DynamicAidStore(mDir);
+        store.load();
+        assertTrue(store.putAidGroup(UID, SERVICE, createGroup("payment", "A0000000031010")));
+        assertTrue(store.putAidGroup(UID, SERVICE, createGroup("other", "F001020304")));
+        assertTrue(store.putAidGroup(UID, SERVICE,
+                createGroup("payment", "A0000000041010", "A0000000042010")));
+        assertTrue(store.removeAidGroup(UID, SERVICE, "other"));
+
+        Collection<DynamicAidStore.Entry> entries = new DynamicAidStore(mDir).load();
+        assertEquals(1, entries.size());
+        DynamicAidStore.Entry entry = entries.iterator().next();
+        assertEquals(UID, entry.uid);
+        assertEquals(SERVICE, entry.component);
+        assertEquals("payment", entry.group.getCategory());
+        assertEquals(Arrays.asList("A0000000041010", "A0000000042010"), entry.group.getAids());
+    }
+
+    public void testRemoveService() {
+        DynamicAidStore store = new DynamicAidStore(mDir);
+        store.load();
+        store.putAidGroup(UID, SERVICE, createGroup("payment", "A0000000031010"));
+        store.putAidGroup(UID, SERVICE, createGroup("other", "F001020304"));
+        assertTrue(store.removeService(UID, SERVICE));
+
+        assertTrue(new DynamicAidStore(mDir).load().isEmpty());
+    }
+
+    public void testCompacts() {
+        DynamicAidStore store = new DynamicAidStore(mDir);
+        store.load();
+        for (int i = 0; i < 100; i++) {
+            store.putAidGroup(UID, SERVICE, createGroup("other", String.format("F0010203%02X", i)));
+        }
+        assertTrue(store.mNumCompactions > 0);
+        assertTrue(store.mNumRecords <= 2 * DynamicAidStore.COMPACT_MIN_OUTDATED_RECORDS);
+
+        Collection<DynamicAidStore.Entry> entries = new DynamicAidStore(mDir).load();
+        assertEquals(1, entries.size());
+        assertEquals(Arrays.asList("F001020363"), entries.iterator().next().group.getAids());
+    }
+
+    public void testDropsPartialRecord() throws Exception {
+        DynamicAidStore store = new DynamicAidStore(mDir);
+        store.load();
+        store.putAidGroup(UID, SERVICE, createGroup("payment", "A0000000031010"));
+        store.putAidGroup(UID, SERVICE, createGroup("other", "F001020304"));
+
+        // Cut the last record short, as if the device lost power while appending
+        File file = new File(mDir, DynamicAidStore.FILE_NAME);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        DynamicAidStore reloaded = new DynamicAidStore(mDir);
+        Collection<DynamicAidStore.Entry> entries = reloaded.load();
+        assertEquals(1, entries.size());
+        assertEquals("payment", entries.iterator().next().group.getCategory());
+        // The partial record was dropped from the file
+        assertEquals(1, reloaded.mNumRecords);
+        assertEquals(1, new DynamicAidStore(mDir).load().size());
+    }
+
+    public void testAppendAfterInterruptedRewrite() throws Exception {
+        DynamicAidStore store = new DynamicAidStore(mDir);
+        store.load();
+        store.putAidGroup(UID, SERVICE, createGroup("payment", "A0000000031010"));
+
+        // Leave a backup behind, as a rewrite that was interrupted does
+        File file = new File(mDir, DynamicAidStore.FILE_NAME);
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        fis.read(contents);
+        fis.close();
+        FileOutputStream fos = new FileOutputStream(
+                new File(mDir, DynamicAidStore.FILE_NAME + ".bak"));
+        fos.write(contents);
+        fos.close();
+
+        assertTrue(store.putAidGroup(UID, SERVICE, createGroup("other", "F001020304")));
+        assertEquals(2, new DynamicAidStore(mDir).load().size());
+    }
+
+    public void testMigratesLegacyXml() throws Exception {
+        File legacyFile = new File(mDir, DynamicAidStore.LEGACY_XML_FILE_NAME);
+        FileOutputStream fos = new FileOutputStream(legacyFile);
+        XmlSerializer out = Xml.newSerializer();
+        out.setOutput(fos, "utf-8");
+        out.startDocument(null, true);
+        out.startTag(null, "services");
+        out.startTag(null, "service");
+        out.attribute(null, "component", SERVICE.flattenToString());
+        out.attribute(null, "uid", Integer.toString(UID));
+        createGroup("payment", "A0000000031010", "A0000000032010").writeAsXml(out);
+        createGroup("other", "F001020304").writeAsXml(out);
+        out.endTag(null, "service");
+        out.endTag(null, "services");
+        out.endDocument();
+        fos.close();
+
+        Collection<DynamicAidStore.Entry> entries = new DynamicAidStore(mDir).load();
+        assertEquals(2, entries.size());
+        assertFalse(legacyFile.exists());
+
+        // The groups now come from the binary file
+        entries = new DynamicAidStore(mDir).load();
+        assertEquals(2, entries.size());
+        for (DynamicAidStore.Entry entry : entries) {
+            assertEquals(UID, entry.uid);
+            assertEquals(SERVICE, entry.component);
+            if ("payment".equals(entry.group.getCategory())) {
+                assertEquals(Arrays.asList("A0000000031010", "A0000000032010"),
+                        entry.group.getAids());
+            } else {
+                assertEquals("other", entry.group.getCategory());
+                assertEquals(Arrays.asList("F001020304"), entry.group.getAids());
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.nfc.cardemulation.HostApduService;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Tests passing APDUs through shared memory, and compares the round trip
+ * against marshalling them in a Bundle as Messenger does.
+ */
+public class SharedApduChannelTest extends AndroidTestCase {
+    private static final String TAG = "SharedApduChannelTest";
+    private static final int NUM_ROUND_TRIPS = 10000;
+
+    private static final byte[] READ_RECORD = {
+        0x00, (byte) 0xB2, 0x01, 0x0C, 0x00
+    };
+
+    private static byte[] createResponse(int length) {
+        byte[] response = new byte[length];
+        for (int i = 0; i < length - 2; i++) {
+            response[i] = (byte) i;
+        }
+        response[length - 2] = (byte) 0x90;
+        response[length - 1] = 0x00;
+        return response;
+    }
+
+    public void testRoundTrip() {
+        SharedApduChannel channel = SharedApduChannel.create();
+        assertNotNull(channel);
+        try {
+            Message msg = channel.writeCommand(READ_RECORD);
+            assertEquals(SharedApduChannel.MSG_SHARED_COMMAND_APDU, msg.what);
+            assertTrue(Arrays.equals(READ_RECORD, channel.readCommand(msg.arg1)));
+
+            byte[] response = createResponse(258);
+            assertTrue(channel.writeResponse(response));
+            assertTrue(Arrays.equals(response, channel.readResponse(response.length)));
+
+            // Lengths announced by the service are checked
+            assertNull(channel.readResponse(0));
+            assertNull(channel.readResponse(SharedApduChannel.MAX_RESPONSE_LENGTH + 1));
+            assertFalse(channel.writeResponse(
+                    new byte[SharedApduChannel.MAX_RESPONSE_LENGTH + 1]));
+        } finally {
+            channel.close();
+        }
+    }
+
+    public void testRoundTripPerformance() {
+        byte[] response = createResponse(258);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NUM_ROUND_TRIPS; i++) {
+            byte[] command = bundleRoundTrip(READ_RECORD);
+            assertEquals(READ_RECORD.length, command.length);
+            assertEquals(response.length, bundleRoundTrip(response).length);
+        }
+        long bundleNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        SharedApduChannel channel = SharedApduChannel.create();
+        assertNotNull(channel);
+        try {
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < NUM_ROUND_TRIPS; i++) {
+                Message msg = channel.writeCommand(READ_RECORD);
+                assertEquals(READ_RECORD.length, channel.readCommand(msg.arg1).length);
+                msg.recycle();
+                channel.writeResponse(response);
+                assertEquals(response.length, channel.readResponse(response.length).length);
+            }
+        } finally {
+            channel.close();
+        }
+        long sharedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, NUM_ROUND_TRIPS + " round trips: bundle " + (bundleNanos / 1000000) +
+                " ms, shared memory " + (sharedNanos / 1000000) + " ms");
+    }
+
+    /**
+     * Marshals data the way a Message carrying it in a Bundle is sent over
+     * Binder, and unmarshals it on the other side.
+     */
+    private static byte[] bundleRoundTrip(byte[] data) {
+        Message msg = Message.obtain(null, HostApduService.MSG_COMMAND_APDU);
+        Bundle dataBundle = new Bundle();
+        dataBundle.putByteArray("data", data);
+        msg.setData(dataBundle);
+        Parcel parcel = Parcel.obtain();
+        try {
+            msg.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            Message received = Message.CREATOR.createFromParcel(parcel);
+            return received.getData().getByteArray("data");
+        } finally {
+            parcel.recycle();
+            msg.recycle();
+        }
+    }
+}
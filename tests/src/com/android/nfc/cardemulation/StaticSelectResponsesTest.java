@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests parsing the static SELECT responses declared by a service.
+ */
+public class StaticSelectResponsesTest extends AndroidTestCase {
+    private static final byte[] PPSE_AID = AidTrie.aidToBytes("325041592E5359532E4444463031");
+    private static final byte[] VISA_AID = AidTrie.aidToBytes("A0000000031010");
+
+    public void testParse() {
+        StaticSelectResponses responses = StaticSelectResponses.parse(
+                "325041592E5359532E4444463031:6F0A8407A00000000310109000; " +
+                "A0000000031010 : 6F009000;");
+        assertNotNull(responses);
+        assertEquals(2, responses.size());
+        assertTrue(Arrays.equals(AidTrie.aidToBytes("6F0A8407A00000000310109000"),
+                responses.get(PPSE_AID, 0, PPSE_AID.length)));
+        assertTrue(Arrays.equals(AidTrie.aidToBytes("6F009000"),
+                responses.get(VISA_AID, 0, VISA_AID.length)));
+        // Only exact AIDs match
+        assertNull(responses.get(VISA_AID, 0, VISA_AID.length - 1));
+    }
+
+    public void testSkipsInvalidEntries() {
+        StaticSelectResponses responses = StaticSelectResponses.parse(
+                // Prefix AID, AID too short, odd length response, response too short
+                "A000000003*:9000;A0000003:9000;A0000000031010:900;A0000000032010:90;" +
+                "A0000000041010:9000");
+        assertNotNull(responses);
+        assertEquals(1, responses.size());
+        assertNull(StaticSelectResponses.parse("A0000000031010"));
+        assertNull(StaticSelectResponses.parse(null));
+    }
+}